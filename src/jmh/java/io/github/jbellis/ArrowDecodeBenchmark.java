@@ -0,0 +1,71 @@
+package io.github.jbellis;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reading every row out of an Arrow file with ArrowShards.forEachRow, i.e. the read stage of the
+ * ingest pipeline.  The file is a synthetic one shaped like a dataset shard, unless the shard
+ * parameter names a real one (-p shard=/path/to/...-00000-of-00378.arrow).  Every row is read,
+ * whatever the divisor in config.properties, and the rows secondary result is rows per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {SyntheticIndex.ADD_MODULES, SyntheticIndex.ADD_OPENS})
+public class ArrowDecodeBenchmark {
+    /** the Arrow file to read, or empty for the synthetic shard */
+    @Param("")
+    public String shard;
+
+    private String filename;
+    private ArrowShards arrowShards;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Rows {
+        public long rows;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            rows = 0;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        filename = shard.isEmpty() ? SyntheticIndex.get().arrowFile : shard;
+        arrowShards = new ArrowShards(1024, 1, 1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        arrowShards.close();
+    }
+
+    @Benchmark
+    public void forEachRow(Rows counter, Blackhole bh) {
+        arrowShards.forEachRow(filename, ColumnarContent.ALL_COLUMNS, (row, embedding) -> {
+            bh.consume(row);
+            bh.consume(embedding);
+            counter.rows++;
+        });
+    }
+}
@@ -0,0 +1,48 @@
+package io.github.jbellis;
+
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Content lookups for search results: a whole row, as WebSearch renders it, and a title alone,
+ * which only decompresses one column of the row's block.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {SyntheticIndex.ADD_MODULES, SyntheticIndex.ADD_OPENS})
+public class ContentBenchmark {
+    private static final Set<ColumnarContent.Column> TITLE = EnumSet.of(ColumnarContent.Column.TITLE);
+
+    private SyntheticIndex synthetic;
+
+    @Setup
+    public void setup() {
+        synthetic = SyntheticIndex.get();
+    }
+
+    @Benchmark
+    public RowData wholeRow() {
+        return synthetic.content.get(ThreadLocalRandom.current().nextInt(SyntheticIndex.SIZE), ColumnarContent.ALL_COLUMNS);
+    }
+
+    @Benchmark
+    public RowData titleOnly() {
+        return synthetic.content.get(ThreadLocalRandom.current().nextInt(SyntheticIndex.SIZE), TITLE);
+    }
+}
@@ -0,0 +1,49 @@
+package io.github.jbellis;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import io.github.jbellis.jvector.vector.types.VectorFloat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The per-row encoding done by BuildIndex.encode: a PQ code for the graph build, and an LVQ
+ * vector for the index file.  Reported as rows per second per thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {SyntheticIndex.ADD_MODULES, SyntheticIndex.ADD_OPENS})
+public class EncodeBenchmark {
+    private SyntheticIndex synthetic;
+
+    @Setup
+    public void setup() {
+        synthetic = SyntheticIndex.get();
+    }
+
+    private VectorFloat<?> nextVector() {
+        return synthetic.vectors.get(ThreadLocalRandom.current().nextInt(SyntheticIndex.SIZE));
+    }
+
+    @Benchmark
+    public Object pqEncode() {
+        return synthetic.pq.encode(nextVector());
+    }
+
+    @Benchmark
+    public Object lvqEncode() {
+        return synthetic.lvq.encode(nextVector());
+    }
+}
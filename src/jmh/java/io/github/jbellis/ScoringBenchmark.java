@@ -0,0 +1,92 @@
+package io.github.jbellis;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import io.github.jbellis.jvector.graph.disk.OnDiskGraphIndex;
+import io.github.jbellis.jvector.vector.VectorSimilarityFunction;
+import io.github.jbellis.jvector.vector.types.VectorFloat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The two scoring passes of a search: approximate scores from the PQ codes, which the graph
+ * search computes for every node it visits, and the LVQ reranker, which rescores the best rerankK
+ * candidates from the inline vectors in the index file.  Each invocation scores NODES random nodes
+ * for one query, so the results are per node scored; the per-query setup (building the PQ lookup
+ * table or the LVQ query state) is measured separately.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {SyntheticIndex.ADD_MODULES, SyntheticIndex.ADD_OPENS})
+public class ScoringBenchmark {
+    private static final int NODES = 1000;
+
+    private SyntheticIndex synthetic;
+    private OnDiskGraphIndex.View view;
+    private VectorFloat<?> query;
+    private final int[] nodes = new int[NODES];
+
+    @Setup(Level.Trial)
+    public void setup() {
+        synthetic = SyntheticIndex.get();
+        view = synthetic.index.getView();
+    }
+
+    @Setup(Level.Iteration)
+    public void pickNodes() {
+        var random = ThreadLocalRandom.current();
+        query = synthetic.queries.get(random.nextInt(synthetic.queries.size()));
+        for (int i = 0; i < NODES; i++) {
+            nodes[i] = random.nextInt(SyntheticIndex.SIZE);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        view.close();
+    }
+
+    @Benchmark
+    public Object pqScoreFunctionFor() {
+        return synthetic.pqv.scoreFunctionFor(query, VectorSimilarityFunction.COSINE);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NODES)
+    public void pqScore(Blackhole bh) {
+        var asf = synthetic.pqv.scoreFunctionFor(query, VectorSimilarityFunction.COSINE);
+        for (int node : nodes) {
+            bh.consume(asf.similarityTo(node));
+        }
+    }
+
+    @Benchmark
+    public Object lvqRerankerFor() {
+        return view.rerankerFor(query, VectorSimilarityFunction.COSINE);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NODES)
+    public void lvqRerank(Blackhole bh) {
+        var reranker = view.rerankerFor(query, VectorSimilarityFunction.COSINE);
+        for (int node : nodes) {
+            bh.consume(reranker.similarityTo(node));
+        }
+    }
+}
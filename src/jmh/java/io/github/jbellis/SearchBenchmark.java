@@ -0,0 +1,65 @@
+package io.github.jbellis;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import io.github.jbellis.jvector.graph.GraphSearcher;
+import io.github.jbellis.jvector.graph.SearchResult;
+import io.github.jbellis.jvector.graph.disk.OnDiskGraphIndex;
+import io.github.jbellis.jvector.graph.similarity.SearchScoreProvider;
+import io.github.jbellis.jvector.util.Bits;
+import io.github.jbellis.jvector.vector.VectorSimilarityFunction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A whole search, as IndexGeneration runs it (PQ scores for the graph search, then LVQ reranking),
+ * at topK 10 and a range of rerankK.  The searcher and view are per thread, as in SearcherPool.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {SyntheticIndex.ADD_MODULES, SyntheticIndex.ADD_OPENS})
+public class SearchBenchmark {
+    private static final int TOP_K = 10;
+
+    @Param({"10", "20", "40", "100"})
+    public int rerankK;
+
+    private SyntheticIndex synthetic;
+    private GraphSearcher searcher;
+    private OnDiskGraphIndex.View view;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        synthetic = SyntheticIndex.get();
+        searcher = new GraphSearcher(synthetic.index);
+        view = (OnDiskGraphIndex.View) searcher.getView();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        searcher.close();
+    }
+
+    @Benchmark
+    public SearchResult search() {
+        var q = synthetic.queries.get(ThreadLocalRandom.current().nextInt(synthetic.queries.size()));
+        var asf = synthetic.pqv.scoreFunctionFor(q, VectorSimilarityFunction.COSINE);
+        var rr = view.rerankerFor(q, VectorSimilarityFunction.COSINE);
+        return searcher.search(new SearchScoreProvider(asf, rr), TOP_K, rerankK, 0.0f, 0.0f, Bits.ALL);
+    }
+}
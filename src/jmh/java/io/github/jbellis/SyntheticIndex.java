@@ -0,0 +1,199 @@
+package io.github.jbellis;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+
+import io.github.jbellis.jvector.graph.GraphIndexBuilder;
+import io.github.jbellis.jvector.graph.ListRandomAccessVectorValues;
+import io.github.jbellis.jvector.graph.disk.FeatureId;
+import io.github.jbellis.jvector.graph.disk.LVQ;
+import io.github.jbellis.jvector.graph.disk.OnDiskGraphIndex;
+import io.github.jbellis.jvector.graph.disk.OnDiskGraphIndexWriter;
+import io.github.jbellis.jvector.graph.similarity.BuildScoreProvider;
+import io.github.jbellis.jvector.pq.LocallyAdaptiveVectorQuantization;
+import io.github.jbellis.jvector.pq.PQVectors;
+import io.github.jbellis.jvector.pq.ProductQuantization;
+import io.github.jbellis.jvector.util.PhysicalCoreExecutor;
+import io.github.jbellis.jvector.vector.VectorSimilarityFunction;
+import io.github.jbellis.jvector.vector.VectorUtil;
+import io.github.jbellis.jvector.vector.VectorizationProvider;
+import io.github.jbellis.jvector.vector.types.ByteSequence;
+import io.github.jbellis.jvector.vector.types.VectorFloat;
+import io.github.jbellis.jvector.vector.types.VectorTypeSupport;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.complex.ListVector;
+import org.apache.arrow.vector.ipc.ArrowStreamWriter;
+import org.apache.arrow.vector.types.FloatingPointPrecision;
+import org.apache.arrow.vector.types.pojo.ArrowType;
+import org.apache.arrow.vector.types.pojo.FieldType;
+
+import static io.github.jbellis.BuildIndex.DIMENSION;
+
+/**
+ * A small index built from synthetic data in a temporary directory, so the benchmarks need neither
+ * the dataset nor the network.  The vectors are drawn from clusters around random centroids, which
+ * is closer to real embeddings than uniform noise; the codebooks, graph parameters and on-disk
+ * format are the same as BuildIndex's.  Built once per JVM and shared by every benchmark in it.
+ */
+class SyntheticIndex {
+    // JVM flags every fork needs: SIMD for jvector, and reflective access to NIO buffers for Arrow
+    static final String ADD_MODULES = "--add-modules=jdk.incubator.vector";
+    static final String ADD_OPENS = "--add-opens=java.base/java.nio=ALL-UNNAMED";
+
+    static final int SIZE = 20_000;
+    private static final int CLUSTERS = 64;
+    private static final int ARROW_BATCH_ROWS = 1000;
+    private static final VectorTypeSupport vts = VectorizationProvider.getInstance().getVectorTypeSupport();
+    private static final String[] WORDS = ("the of and in to a was is for on as by with he at from that his it an were are which " +
+                                           "this also be first had or new one has their after who its two but been not they she " +
+                                           "her league city school season world county team national university war district " +
+                                           "state film album river church population village series game government").split(" ");
+
+    private static SyntheticIndex instance;
+
+    final Path directory;
+    final List<VectorFloat<?>> vectors;
+    final List<VectorFloat<?>> queries;
+    final ProductQuantization pq;
+    final PQVectors pqv;
+    final LocallyAdaptiveVectorQuantization lvq;
+    final OnDiskGraphIndex index;
+    final ColumnarContent content;
+    final String arrowFile;
+
+    static synchronized SyntheticIndex get() {
+        if (instance == null) {
+            try {
+                instance = new SyntheticIndex();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(instance::delete));
+        }
+        return instance;
+    }
+
+    private SyntheticIndex() throws IOException {
+        directory = Files.createTempDirectory("coherepedia-jmh");
+        var random = new Random(42);
+        var centroids = Stream.generate(() -> randomVector(random, null, 1.0f)).limit(CLUSTERS).toList();
+        vectors = Stream.generate(() -> randomVector(random, centroids.get(random.nextInt(CLUSTERS)), 0.5f)).limit(SIZE).toList();
+        queries = Stream.generate(() -> randomVector(random, centroids.get(random.nextInt(CLUSTERS)), 0.5f)).limit(1000).toList();
+        var ravv = new ListRandomAccessVectorValues(vectors, DIMENSION);
+
+        pq = BuildIndex.computePQ(ravv);
+        pqv = new PQVectors(pq, vectors.stream().<ByteSequence<?>>map(pq::encode).toList());
+        lvq = LocallyAdaptiveVectorQuantization.compute(ravv);
+
+        var builder = new GraphIndexBuilder(BuildScoreProvider.randomAccessScoreProvider(ravv, VectorSimilarityFunction.COSINE),
+                                            DIMENSION, 48, 128, 1.2f, 1.2f,
+                                            PhysicalCoreExecutor.pool(), ForkJoinPool.commonPool());
+        var graph = builder.build(ravv);
+        var annPath = directory.resolve("coherepedia.ann");
+        try (var writer = new OnDiskGraphIndexWriter.Builder(graph, annPath)
+                          .with(new LVQ(lvq))
+                          .withMapper(new OnDiskGraphIndexWriter.IdentityMapper())
+                          .build())
+        {
+            writer.write(Map.of(FeatureId.LVQ, i -> new LVQ.State(lvq.encode(vectors.get(i)))));
+        }
+        index = OnDiskGraphIndex.load(new MappedReaderSupplier(annPath));
+
+        var contentPath = directory.resolve("coherepedia.content");
+        try (var writer = ColumnarContent.Writer.create(contentPath, 0)) {
+            for (int i = 0; i < SIZE; i++) {
+                writer.put(i, row(i));
+            }
+        }
+        content = ColumnarContent.open(contentPath);
+
+        arrowFile = directory.resolve("synthetic.arrow").toString();
+        writeArrow(arrowFile);
+    }
+
+    /**
+     * Text shaped like the dataset's: a url of ~60 bytes, a title, and a paragraph of ~500 bytes
+     */
+    static RowData row(int i) {
+        var random = new Random(i);
+        var words = new ArrayList<String>();
+        while (words.stream().mapToInt(w -> w.length() + 1).sum() < 500) {
+            words.add(WORDS[random.nextInt(WORDS.length)]);
+        }
+        var title = WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)];
+        return new RowData("https://en.wikipedia.org/wiki/" + title.replace(' ', '_') + "_" + i, title, String.join(" ", words));
+    }
+
+    private static VectorFloat<?> randomVector(Random random, VectorFloat<?> centroid, float spread) {
+        var v = vts.createFloatVector(DIMENSION);
+        for (int i = 0; i < DIMENSION; i++) {
+            v.set(i, (centroid == null ? 0 : centroid.get(i)) + spread * (float) random.nextGaussian() / (float) Math.sqrt(DIMENSION));
+        }
+        VectorUtil.l2normalize(v);
+        return v;
+    }
+
+    private void writeArrow(String filename) throws IOException {
+        try (var allocator = new RootAllocator();
+             var url = new VarCharVector("url", allocator);
+             var title = new VarCharVector("title", allocator);
+             var text = new VarCharVector("text", allocator);
+             var emb = ListVector.empty("emb", allocator))
+        {
+            emb.addOrGetVector(FieldType.nullable(new ArrowType.FloatingPoint(FloatingPointPrecision.SINGLE)));
+            var root = new VectorSchemaRoot(List.<FieldVector>of(url, title, text, emb));
+            try (var out = new FileOutputStream(filename);
+                 var writer = new ArrowStreamWriter(root, null, Channels.newChannel(out)))
+            {
+                writer.start();
+                for (int start = 0; start < SIZE; start += ARROW_BATCH_ROWS) {
+                    root.allocateNew();
+                    var listWriter = emb.getWriter();
+                    int rows = Math.min(ARROW_BATCH_ROWS, SIZE - start);
+                    for (int r = 0; r < rows; r++) {
+                        var row = row(start + r);
+                        url.setSafe(r, row.url().getBytes(StandardCharsets.UTF_8));
+                        title.setSafe(r, row.title().getBytes(StandardCharsets.UTF_8));
+                        text.setSafe(r, row.text().getBytes(StandardCharsets.UTF_8));
+                        listWriter.setPosition(r);
+                        listWriter.startList();
+                        var v = vectors.get(start + r);
+                        for (int i = 0; i < DIMENSION; i++) {
+                            listWriter.float4().writeFloat4(v.get(i));
+                        }
+                        listWriter.endList();
+                    }
+                    root.setRowCount(rows);
+                    writer.writeBatch();
+                }
+                writer.end();
+            }
+        }
+    }
+
+    private void delete() {
+        content.close();
+        try (var files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+        catch (IOException e) {
+            // it's in the temp directory
+        }
+    }
+}
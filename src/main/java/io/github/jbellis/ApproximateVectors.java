@@ -0,0 +1,58 @@
+package io.github.jbellis;
+
+import io.github.jbellis.jvector.graph.similarity.ScoreFunction;
+import io.github.jbellis.jvector.pq.PQVectors;
+import io.github.jbellis.jvector.pq.ProductQuantization;
+import io.github.jbellis.jvector.vector.VectorSimilarityFunction;
+import io.github.jbellis.jvector.vector.VectorizationProvider;
+import io.github.jbellis.jvector.vector.types.VectorFloat;
+
+/**
+ * The PQ-compressed vectors of a generation, which the first pass of a search scores candidates
+ * with: either deserialized onto the heap by PQVectors, or read in place by MappedPQVectors.
+ */
+interface ApproximateVectors extends AutoCloseable {
+    /**
+     * @return a score function for the cosine similarity of q to each node, approximated from its code
+     */
+    ScoreFunction.ApproximateScoreFunction scoreFunctionFor(VectorFloat<?> q);
+
+    /**
+     * @return the vector node's code decodes to
+     */
+    VectorFloat<?> decode(int node);
+
+    int count();
+
+    @Override
+    void close();
+
+    /**
+     * @param pq the codebooks the vectors were encoded with
+     */
+    static ApproximateVectors onHeap(ProductQuantization pq, PQVectors pqv) {
+        return new ApproximateVectors() {
+            @Override
+            public ScoreFunction.ApproximateScoreFunction scoreFunctionFor(VectorFloat<?> q) {
+                return pqv.scoreFunctionFor(q, VectorSimilarityFunction.COSINE);
+            }
+
+            @Override
+            public VectorFloat<?> decode(int node) {
+                var v = VectorizationProvider.getInstance().getVectorTypeSupport().createFloatVector(BuildIndex.DIMENSION);
+                pq.decode(pqv.get(node), v);
+                return v;
+            }
+
+            @Override
+            public int count() {
+                return pqv.count();
+            }
+
+            @Override
+            public void close() {
+                // nothing to release
+            }
+        };
+    }
+}
@@ -0,0 +1,265 @@
+package io.github.jbellis;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.VectorLoader;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.VectorUnloader;
+import org.apache.arrow.vector.complex.ListVector;
+import org.apache.arrow.vector.ipc.ArrowStreamReader;
+import org.apache.arrow.vector.ipc.message.ArrowRecordBatch;
+
+/**
+ * Reads the rows of the dataset's Arrow shards.
+ * <p>
+ * Each shard is memory-mapped and read through one allocator shared by every reader, whose limit
+ * (arrow_memory_limit_mb) bounds the Arrow memory of the whole process instead of each reader
+ * having an unbounded allocator of its own.  Only the requested content columns are decoded, so
+ * callers that just want the embeddings (sampling, training) skip decoding the text.
+ * <p>
+ * forEachRowParallel also hands each record batch of a shard to a pool of ingest_batch_threads
+ * threads, so that decoding a shard is not limited to the one thread reading it.  The shards are
+ * in Arrow's streaming format, which has no index of its batches, so reading the batches (copying
+ * them out of the mapping) is still sequential; decoding their rows is what runs in parallel.
+ */
+class ArrowShards implements AutoCloseable {
+    private final BufferAllocator allocator;
+    private final int divisor;
+    private final int batchThreads;
+    // null if batchThreads <= 1
+    private final ExecutorService batchPool;
+
+    ArrowShards(Config config) {
+        this(config.getArrowMemoryLimitMB(), config.getDivisor(), config.getIngestBatchThreads());
+    }
+
+    /**
+     * @param divisor read only the first 1/divisor of each batch's rows
+     */
+    ArrowShards(int memoryLimitMB, int divisor, int batchThreads) {
+        this.allocator = new RootAllocator(memoryLimitMB * 1024L * 1024L);
+        this.divisor = divisor;
+        this.batchThreads = batchThreads;
+        this.batchPool = batchThreads <= 1 ? null : Executors.newFixedThreadPool(batchThreads, r -> {
+            var t = new Thread(r, "arrow-batch");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Calls consumer with each row of the shard, in order, from this thread.  The row has only the
+     * given columns; the others are null.
+     */
+    void forEachRow(String filename, Set<ColumnarContent.Column> columns, BiConsumer<RowData, float[]> consumer) {
+        read(filename, (root, batch) -> decode(root, columns, consumer));
+    }
+
+    /**
+     * As forEachRow, but the batches are decoded by the batch pool (if there is one), so consumer
+     * is called concurrently and in no particular order.
+     */
+    void forEachRowParallel(String filename, Set<ColumnarContent.Column> columns, BiConsumer<RowData, float[]> consumer) {
+        if (batchPool == null) {
+            forEachRow(filename, columns, consumer);
+            return;
+        }
+
+        // at most two batches per thread in flight, so a fast reader can't buffer the whole shard
+        var inFlight = new Semaphore(2 * batchThreads);
+        var futures = new ArrayList<Future<?>>();
+        read(filename, (root, batchAllocator) -> {
+            acquire(inFlight);
+            ArrowRecordBatch batch = new VectorUnloader(root).getRecordBatch();
+            var schema = root.getSchema();
+            futures.add(batchPool.submit(() -> {
+                try (batch; var copy = VectorSchemaRoot.create(schema, batchAllocator)) {
+                    new VectorLoader(copy).load(batch);
+                    decode(copy, columns, consumer);
+                }
+                finally {
+                    inFlight.release();
+                }
+            }));
+        }, () -> await(futures));
+    }
+
+    /**
+     * @return the number of rows forEachRow would return
+     */
+    int countRows(String filename) {
+        int[] rows = {0};
+        read(filename, (root, batch) -> rows[0] += root.getRowCount() / divisor);
+        return rows[0];
+    }
+
+    @Override
+    public void close() {
+        if (batchPool != null) {
+            batchPool.shutdownNow();
+        }
+        allocator.close();
+    }
+
+    private interface BatchHandler {
+        /**
+         * @param allocator the allocator the batch was read with, for copies of it
+         */
+        void accept(VectorSchemaRoot root, BufferAllocator allocator);
+    }
+
+    private void read(String filename, BatchHandler handler) {
+        read(filename, handler, () -> {});
+    }
+
+    /**
+     * Load each batch of the shard in turn and pass it to the handler; then run beforeClose (even if
+     * reading fails), which must wait for anything still using the batches, since their memory is
+     * freed after it
+     */
+    private void read(String filename, BatchHandler handler, Runnable beforeClose) {
+        try (var arena = Arena.ofConfined();
+             var channel = FileChannel.open(Path.of(filename), StandardOpenOption.READ);
+             var shardAllocator = allocator.newChildAllocator(filename, 0, allocator.getLimit()))
+        {
+            ReadableByteChannel source = channel.size() > Integer.MAX_VALUE
+                                         ? channel // too big to view as one ByteBuffer; read it the usual way
+                                         : new MappedChannel(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena).asByteBuffer());
+            try (var reader = new ArrowStreamReader(source, shardAllocator)) {
+                try {
+                    var root = reader.getVectorSchemaRoot();
+                    while (reader.loadNextBatch()) {
+                        handler.accept(root, shardAllocator);
+                    }
+                }
+                finally {
+                    beforeClose.run();
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void decode(VectorSchemaRoot root, Set<ColumnarContent.Column> columns, BiConsumer<RowData, float[]> consumer) {
+        var embeddings = new EmbeddingDecoder((ListVector) root.getVector("emb"));
+        embeddings.reset();
+        var url = columns.contains(ColumnarContent.Column.URL) ? root.getVector("url") : null;
+        var title = columns.contains(ColumnarContent.Column.TITLE) ? root.getVector("title") : null;
+        var text = columns.contains(ColumnarContent.Column.TEXT) ? root.getVector("text") : null;
+        for (int i = 0; i < root.getRowCount() / divisor; i++) {
+            var row = new RowData(string(url, i), string(title, i), string(text, i));
+            consumer.accept(row, embeddings.decode(i));
+        }
+    }
+
+    /**
+     * @return the string in the given row of the column, or null if the column isn't being read
+     */
+    private static String string(FieldVector vector, int i) {
+        if (vector == null) {
+            return null;
+        }
+        // straight from the UTF-8 bytes, rather than through getObject's Text
+        if (vector instanceof VarCharVector varchar) {
+            return new String(varchar.get(i), StandardCharsets.UTF_8);
+        }
+        return vector.getObject(i).toString();
+    }
+
+    private static void acquire(Semaphore semaphore) {
+        try {
+            semaphore.acquire();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Wait for every one of the futures, even after one fails, and then rethrow the first failure
+     */
+    private static void await(List<Future<?>> futures) {
+        Throwable failure = null;
+        boolean interrupted = false;
+        for (var future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                }
+                catch (ExecutionException e) {
+                    failure = failure == null ? e.getCause() : failure;
+                    break;
+                }
+                catch (InterruptedException e) {
+                    // the batches must not outlive their allocator, so keep waiting
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure instanceof RuntimeException re ? re : new RuntimeException(failure);
+        }
+    }
+
+    /**
+     * A channel over a memory-mapped file, so the reader copies batches straight out of the page
+     * cache instead of through read() calls
+     */
+    private static final class MappedChannel implements ReadableByteChannel {
+        private final ByteBuffer buffer;
+
+        MappedChannel(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(dst.remaining(), buffer.remaining());
+            dst.put(dst.position(), buffer, buffer.position(), n);
+            dst.position(dst.position() + n);
+            buffer.position(buffer.position() + n);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+            // the mapping is owned by the arena
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package io.github.jbellis;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.jbellis.jvector.graph.SearchResult;
+import io.github.jbellis.jvector.util.Bits;
+import io.github.jbellis.jvector.vector.VectorizationProvider;
+import io.github.jbellis.jvector.vector.types.VectorFloat;
+import io.github.jbellis.jvector.vector.types.VectorTypeSupport;
+import spark.Request;
+import spark.Response;
+
+import static spark.Spark.halt;
+
+/**
+ * Searches for a batch of queries in one request, for clients that need many results at once.
+ * The request is a JSON object:
+ * <pre>
+ * {"queries": [{"text": "..."}, {"vector": [0.1, ...]}, ...], "top_k": 5, "fields": ["url", "title"],
+ *  "filter": {"title_initial": ["A", "B"]}}
+ * </pre>
+ * All the texts are embedded in one call, and the searches run in parallel on the search pool.
+ * Results are streamed back in query order as they complete:
+ * <pre>
+ * {"generation": 0, "results": [{"hits": [{"id": 17, "score": 0.83, "url": "...", "title": "..."}, ...]}, ...]}
+ * </pre>
+ * top_k defaults to 5, and fields to all of url, title and text.  The optional filter restricts
+ * every query in the batch to the rows with one of the given values of each attribute (see FilterIndex).
+ */
+class BatchSearch {
+    private static final VectorTypeSupport vts = VectorizationProvider.getInstance().getVectorTypeSupport();
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final JsonFactory json = mapper.getFactory();
+    static final int MAX_QUERIES = 256;
+    static final int MAX_TOP_K = 100;
+    private static final Metrics.Counter requests = Metrics.counter("coherepedia_search_requests_total", WebSearch.REQUESTS_HELP, "endpoint", "json");
+    private static final Metrics.Counter queryCount = Metrics.counter("coherepedia_search_batch_queries_total", "Queries in batch search requests");
+    private static final Metrics.Timer requestTime = Metrics.timer("coherepedia_search_request_seconds", WebSearch.REQUEST_TIME_HELP, "endpoint", "json");
+
+    private record Hit(int id, float score, RowData row) {}
+
+    private final EmbeddingProvider embeddings;
+    private final Supplier<IndexGeneration> acquireGeneration;
+    private final SearchPool searchPool;
+
+    BatchSearch(EmbeddingProvider embeddings, Supplier<IndexGeneration> acquireGeneration, SearchPool searchPool) {
+        this.embeddings = embeddings;
+        this.acquireGeneration = acquireGeneration;
+        this.searchPool = searchPool;
+    }
+
+    Object handle(Request req, Response res) throws IOException {
+        long start = System.nanoTime();
+        requests.increment();
+        res.type("application/json");
+        JsonNode body;
+        try {
+            body = mapper.readTree(req.bodyAsBytes());
+        }
+        catch (IOException e) {
+            throw badRequest("Request body is not valid JSON");
+        }
+        if (body == null || !body.path("queries").isArray()) {
+            throw badRequest("Expected an object with a \"queries\" array");
+        }
+        var queries = body.get("queries");
+        if (queries.size() > MAX_QUERIES) {
+            throw badRequest("At most " + MAX_QUERIES + " queries per request");
+        }
+        int topK = body.path("top_k").asInt(5);
+        if (topK < 1 || topK > MAX_TOP_K) {
+            throw badRequest("top_k must be between 1 and " + MAX_TOP_K);
+        }
+        var columns = parseColumns(body.get("fields"));
+        var filter = parseFilter(body.get("filter"));
+        queryCount.add(queries.size());
+        var vectors = toVectors(queries);
+
+        var generation = acquireGeneration.get();
+        FilterIndex.Match match = null;
+        if (!filter.isEmpty()) {
+            if (generation.filters == null) {
+                generation.release();
+                throw badRequest("This index was built without filters");
+            }
+            match = generation.filters.match(filter);
+        }
+        var accepted = match;
+        var futures = new ArrayList<CompletableFuture<List<Hit>>>(vectors.size());
+        for (var q : vectors) {
+            futures.add(searchPool.submit(() -> search(generation, q, topK, accepted, columns)));
+        }
+        // the searches may outlive this request if writing the response fails
+        CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).whenComplete((r, e) -> generation.release());
+
+        try (var out = json.createGenerator(res.raw().getOutputStream())) {
+            out.writeStartObject();
+            out.writeNumberField("generation", generation.generation);
+            out.writeArrayFieldStart("results");
+            for (var future : futures) {
+                out.writeStartObject();
+                out.writeArrayFieldStart("hits");
+                for (var hit : future.get()) {
+                    writeHit(out, hit, columns);
+                }
+                out.writeEndArray();
+                out.writeEndObject();
+                // let the client start on this result while the later ones finish
+                out.flush();
+            }
+            out.writeEndArray();
+            out.writeEndObject();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        requestTime.recordSince(start);
+        return "";
+    }
+
+    private static List<Hit> search(IndexGeneration generation, VectorFloat<?> q, int topK, FilterIndex.Match filter,
+                                    Set<ColumnarContent.Column> columns)
+    {
+        SearchResult result = filter == null ? generation.search(q, topK, Bits.ALL) : generation.search(q, topK, filter);
+        long start = System.nanoTime();
+        var hits = new ArrayList<Hit>(result.getNodes().length);
+        for (var ns : result.getNodes()) {
+            RowData row = columns.isEmpty() ? null : generation.content.get(ns.node, columns);
+            hits.add(new Hit(ns.node, ns.score, row));
+        }
+        WebSearch.contentTime.recordSince(start);
+        return hits;
+    }
+
+    private static void writeHit(JsonGenerator out, Hit hit, Set<ColumnarContent.Column> columns) throws IOException {
+        out.writeStartObject();
+        out.writeNumberField("id", hit.id());
+        out.writeNumberField("score", hit.score());
+        for (var column : columns) {
+            out.writeStringField(column.name().toLowerCase(Locale.ROOT), column.of(hit.row()));
+        }
+        out.writeEndObject();
+    }
+
+    /**
+     * @return the query vectors, embedding all the text queries in one call
+     */
+    private List<VectorFloat<?>> toVectors(JsonNode queries) {
+        var vectors = new ArrayList<VectorFloat<?>>(queries.size());
+        var texts = new ArrayList<String>();
+        var textPositions = new ArrayList<Integer>();
+        for (var query : queries) {
+            if (query.path("text").isTextual()) {
+                textPositions.add(vectors.size());
+                texts.add(query.get("text").asText());
+                vectors.add(null);
+            } else if (query.path("vector").isArray()) {
+                var values = query.get("vector");
+                if (values.size() != BuildIndex.DIMENSION) {
+                    throw badRequest("Vectors must have " + BuildIndex.DIMENSION + " dimensions");
+                }
+                var v = vts.createFloatVector(values.size());
+                for (int i = 0; i < values.size(); i++) {
+                    v.set(i, (float) values.get(i).asDouble());
+                }
+                vectors.add(v);
+            } else {
+                throw badRequest("Each query needs a \"text\" string or a \"vector\" array");
+            }
+        }
+
+        if (!texts.isEmpty()) {
+            long start = System.nanoTime();
+            var embedded = embeddings.embedAll(texts);
+            WebSearch.embedTime.recordSince(start);
+            for (int i = 0; i < texts.size(); i++) {
+                vectors.set(textPositions.get(i), embedded.get(i));
+            }
+        }
+        return vectors;
+    }
+
+    private static Set<ColumnarContent.Column> parseColumns(JsonNode fields) {
+        if (fields == null) {
+            return ColumnarContent.ALL_COLUMNS;
+        }
+        var columns = EnumSet.noneOf(ColumnarContent.Column.class);
+        for (var field : fields) {
+            try {
+                columns.add(ColumnarContent.Column.valueOf(field.asText().toUpperCase(Locale.ROOT)));
+            }
+            catch (IllegalArgumentException e) {
+                throw badRequest("Unknown field " + field.asText() + "; expected url, title or text");
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * @return the filter, whose values may each be given as an array or a comma-separated string
+     */
+    private static Map<FilterIndex.Attribute, Set<String>> parseFilter(JsonNode filter) {
+        if (filter == null) {
+            return Map.of();
+        }
+        if (!filter.isObject()) {
+            throw badRequest("filter must be an object of attribute values");
+        }
+        var values = new HashMap<String, String>();
+        var fields = filter.fields();
+        while (fields.hasNext()) {
+            var field = fields.next();
+            try {
+                FilterIndex.Attribute.forKey(field.getKey());
+            }
+            catch (IllegalArgumentException e) {
+                throw badRequest(e.getMessage());
+            }
+            var value = field.getValue();
+            if (value.isArray()) {
+                var joined = new ArrayList<String>();
+                value.forEach(v -> joined.add(v.asText()));
+                values.put(field.getKey(), String.join(",", joined));
+            } else {
+                values.put(field.getKey(), value.asText());
+            }
+        }
+        return FilterIndex.parse(values::get);
+    }
+
+    private static RuntimeException badRequest(String message) {
+        var error = mapper.createObjectNode().put("error", message);
+        return halt(400, error.toString());
+    }
+}
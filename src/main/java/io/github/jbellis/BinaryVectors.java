@@ -0,0 +1,166 @@
+package io.github.jbellis;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import io.github.jbellis.jvector.graph.similarity.ScoreFunction;
+import io.github.jbellis.jvector.vector.VectorizationProvider;
+import io.github.jbellis.jvector.vector.types.VectorFloat;
+import io.github.jbellis.jvector.vector.types.VectorTypeSupport;
+
+/**
+ * Binary-quantized vectors, for a first pass that is cheap to score: one bit per dimension, set if
+ * the component is positive, scored by the fraction of bits that agree with the query's.  That is
+ * 128 bytes per row at 1024 dimensions, twice the default 64-subspace PQ codes, so this saves no
+ * memory unless pq_subspaces is above 128.  The embeddings are normalized and not centered, so this
+ * approximates their angle well enough to pick candidates for reranking, if not to rank them.
+ * <p>
+ * The file (coherepedia.bqv) is a 16-byte header -- MAGIC, the dimension, the number of vectors,
+ * and padding -- followed by each vector's bits as big-endian longs, in order of id.  BuildIndex
+ * writes each row's bits at its id's offset as it is ingested, and the header last.
+ */
+class BinaryVectors implements ApproximateVectors {
+    private static final VectorTypeSupport vts = VectorizationProvider.getInstance().getVectorTypeSupport();
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private static final int MAGIC = 0xc0ffee22;
+    private static final int HEADER_BYTES = 16;
+
+    private final Arena arena;
+    private final MemorySegment segment;
+    private final int dimension;
+    private final int words;
+    private final int count;
+
+    private BinaryVectors(Arena arena, MemorySegment segment, int dimension, int count) {
+        this.arena = arena;
+        this.segment = segment;
+        this.dimension = dimension;
+        this.words = words(dimension);
+        this.count = count;
+    }
+
+    static BinaryVectors open(Path path) throws IOException {
+        var arena = Arena.ofShared();
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+            int dimension = segment.get(INT, 4);
+            int count = segment.get(INT, 8);
+            if (segment.get(INT, 0) != MAGIC || HEADER_BYTES + (long) count * words(dimension) * Long.BYTES > segment.byteSize()) {
+                throw new IOException(path + " is not a complete binary vectors file");
+            }
+            return new BinaryVectors(arena, segment, dimension, count);
+        }
+        catch (IOException | RuntimeException e) {
+            arena.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public ScoreFunction.ApproximateScoreFunction scoreFunctionFor(VectorFloat<?> q) {
+        var bits = encode(q);
+        return node -> {
+            long offset = offset(node);
+            int differing = 0;
+            for (int w = 0; w < words; w++) {
+                differing += Long.bitCount(bits[w] ^ segment.get(LONG, offset + (long) w * Long.BYTES));
+            }
+            return 1 - (float) differing / dimension;
+        };
+    }
+
+    /**
+     * @return the unit vector whose components are all of equal magnitude and have the node's signs
+     */
+    @Override
+    public VectorFloat<?> decode(int node) {
+        var v = vts.createFloatVector(dimension);
+        float magnitude = (float) (1 / Math.sqrt(dimension));
+        long offset = offset(node);
+        for (int i = 0; i < dimension; i++) {
+            long word = segment.get(LONG, offset + (long) (i / Long.SIZE) * Long.BYTES);
+            v.set(i, (word & (1L << (i % Long.SIZE))) != 0 ? magnitude : -magnitude);
+        }
+        return v;
+    }
+
+    @Override
+    public int count() {
+        return count;
+    }
+
+    @Override
+    public void close() {
+        arena.close();
+    }
+
+    private long offset(int node) {
+        return HEADER_BYTES + (long) node * words * Long.BYTES;
+    }
+
+    private static int words(int dimension) {
+        return (dimension + Long.SIZE - 1) / Long.SIZE;
+    }
+
+    static long[] encode(VectorFloat<?> v) {
+        var bits = new long[words(v.length())];
+        for (int i = 0; i < v.length(); i++) {
+            if (v.get(i) > 0) {
+                bits[i / Long.SIZE] |= 1L << (i % Long.SIZE);
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * Writes the bits of each row at its id's offset, from any number of threads
+     */
+    static final class Writer implements AutoCloseable {
+        private final FileChannel channel;
+        private final int dimension;
+
+        /**
+         * Open the file at path, keeping what is already there (from a checkpointed build, or copied
+         * from the previous generation)
+         */
+        Writer(Path path, int dimension) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            this.dimension = dimension;
+        }
+
+        void write(int id, VectorFloat<?> v) throws IOException {
+            var bits = encode(v);
+            var buffer = ByteBuffer.allocate(bits.length * Long.BYTES);
+            buffer.asLongBuffer().put(bits);
+            writeAt(buffer, HEADER_BYTES + (long) id * bits.length * Long.BYTES);
+        }
+
+        /**
+         * Record the number of rows written, which makes the file readable
+         */
+        void finish(int count) throws IOException {
+            var header = ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(dimension).putInt(count).putInt(0).flip();
+            writeAt(header, 0);
+            channel.force(false);
+        }
+
+        private void writeAt(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package io.github.jbellis;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+import java.util.TreeSet;
+
+import io.github.jbellis.jvector.disk.SimpleReader;
+import io.github.jbellis.jvector.graph.GraphIndexBuilder;
+import io.github.jbellis.jvector.graph.OnHeapGraphIndex;
+import io.github.jbellis.jvector.pq.PQVectors;
+
+/**
+ * The state of a partially completed BuildIndex run: which shards are fully ingested, how many ids
+ * have been assigned to them (the watermark), their PQ codes, and the in-memory graph.
+ * <p>
+ * The content map and the inline LVQ vectors in the .ann file are already persistent, so they are not
+ * repeated here; on resume, anything they hold past the watermark belongs to a shard that was in flight
+ * when the build stopped, and is overwritten when that shard is ingested again.
+ * <p>
+ * Everything is written to a single file, which replaces the previous checkpoint atomically,
+ * so a crash while checkpointing leaves the previous checkpoint intact.  That makes each checkpoint
+ * a full rewrite of the graph and PQ codes so far -- the graph's edges change all over as nodes are
+ * inserted, so there is no cheap delta -- which is why checkpoint_shards defaults to a long interval.
+ */
+class BuildCheckpoint {
+    private static final int MAGIC = 0xc0ffee01;
+
+    private final int watermark;
+    private final Set<Integer> completedShards;
+    private final PQVectors pqVectors;
+    private final Path path;
+    private final long graphOffset;
+
+    private BuildCheckpoint(int watermark, Set<Integer> completedShards, PQVectors pqVectors, Path path, long graphOffset) {
+        this.watermark = watermark;
+        this.completedShards = completedShards;
+        this.pqVectors = pqVectors;
+        this.path = path;
+        this.graphOffset = graphOffset;
+    }
+
+    /**
+     * Record the current build state.  The caller is responsible for making sure that nothing is
+     * being ingested concurrently.
+     */
+    static void write(Path path, Set<Integer> completedShards, PQVectors pqVectors, OnHeapGraphIndex graph) throws IOException {
+        if (pqVectors.count() != graph.size()) {
+            throw new IllegalStateException(String.format("Cannot checkpoint %,d PQ vectors with a graph of %,d nodes",
+                                                          pqVectors.count(), graph.size()));
+        }
+
+        var tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (var out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpPath.toFile())))) {
+            out.writeInt(MAGIC);
+            out.writeInt(pqVectors.count());
+            out.writeInt(completedShards.size());
+            for (int shard : completedShards) {
+                out.writeInt(shard);
+            }
+            pqVectors.write(out);
+            graph.save(out);
+        }
+        Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read everything but the graph, which can only be loaded once the builder exists
+     * (and building that requires the PQ vectors).
+     */
+    static BuildCheckpoint load(Path path) throws IOException {
+        try (var in = new SimpleReader(path)) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a BuildIndex checkpoint: " + path);
+            }
+            int watermark = in.readInt();
+            int nShards = in.readInt();
+            var completedShards = new TreeSet<Integer>();
+            for (int i = 0; i < nShards; i++) {
+                completedShards.add(in.readInt());
+            }
+            var pqVectors = PQVectors.load(in);
+            return new BuildCheckpoint(watermark, completedShards, pqVectors, path, in.getPosition());
+        }
+    }
+
+    /**
+     * Load the checkpointed graph into a newly created (empty) builder
+     */
+    void loadGraph(GraphIndexBuilder builder) throws IOException {
+        try (var in = new SimpleReader(path)) {
+            in.seek(graphOffset);
+            builder.load(in);
+        }
+        if (builder.getGraph().size() != watermark) {
+            throw new IOException(String.format("Checkpointed graph has %,d nodes but the watermark is %,d",
+                                                builder.getGraph().size(), watermark));
+        }
+    }
+
+    /** the number of ids assigned to completed shards */
+    int watermark() {
+        return watermark;
+    }
+
+    Set<Integer> completedShards() {
+        return completedShards;
+    }
+
+    PQVectors pqVectors() {
+        return pqVectors;
+    }
+}
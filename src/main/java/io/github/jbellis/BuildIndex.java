@@ -2,24 +2,41 @@ package io.github.jbellis;
 
 import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.time.LocalTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.stream.IntStream;
 
 import io.github.jbellis.jvector.disk.SimpleReader;
 import io.github.jbellis.jvector.graph.GraphIndexBuilder;
 import io.github.jbellis.jvector.graph.ListRandomAccessVectorValues;
+import io.github.jbellis.jvector.graph.RandomAccessVectorValues;
 import io.github.jbellis.jvector.graph.disk.Feature;
 import io.github.jbellis.jvector.graph.disk.FeatureId;
+import io.github.jbellis.jvector.graph.disk.InlineVectors;
 import io.github.jbellis.jvector.graph.disk.LVQ;
 import io.github.jbellis.jvector.graph.disk.OnDiskGraphIndexWriter;
 import io.github.jbellis.jvector.graph.similarity.BuildScoreProvider;
@@ -29,108 +46,380 @@ import io.github.jbellis.jvector.pq.ProductQuantization;
 import io.github.jbellis.jvector.util.PhysicalCoreExecutor;
 import io.github.jbellis.jvector.vector.VectorSimilarityFunction;
 import io.github.jbellis.jvector.vector.VectorizationProvider;
-import io.github.jbellis.jvector.vector.types.ByteSequence;
 import io.github.jbellis.jvector.vector.types.VectorFloat;
 import io.github.jbellis.jvector.vector.types.VectorTypeSupport;
-import net.openhft.chronicle.map.ChronicleMap;
-import net.openhft.chronicle.map.ChronicleMapBuilder;
-import org.apache.arrow.memory.RootAllocator;
-import org.apache.arrow.vector.ipc.ArrowStreamReader;
-import org.apache.arrow.vector.util.JsonStringArrayList;
+import spark.Spark;
 
 public class BuildIndex {
-    private static final Config config = new Config();
-    private static final int N_SHARDS = 378;
+    // the configuration of the index being built: when building partitions, each one's in turn
+    private static Config config = new Config();
+    static final int N_SHARDS = 378;
     private static final int TOTAL_ROWS = 41488110 / config.getDivisor();
+    // shared by every read of the dataset, so that they share one bounded Arrow allocator
+    private static final ArrowShards arrowShards = new ArrowShards(config);
 
     private static final VectorTypeSupport vts = VectorizationProvider.getInstance().getVectorTypeSupport();
 
     private static GraphIndexBuilder builder;
-    private static final int DIMENSION = 1024;
+    static final int DIMENSION = 1024;
     private static OnDiskGraphIndexWriter writer;
-    private static ArrayList<ByteSequence<?>> pqVectorsList;
+    private static PQCodes pqCodes;
     private static ProductQuantization pq;
+    // null unless reranking with LVQ
     private static LocallyAdaptiveVectorQuantization lvq;
-    private static ChronicleMap<Integer, RowData> contentMap;
+    // the profile of the index being built or appended to
+    private static QuantizationProfile profile;
+    // null unless the first pass is binary quantized
+    private static BinaryVectors.Writer bqWriter;
+    private static ColumnarContent.Writer content;
+
+    private static final int HEAP_SAMPLE_MILLIS = 100;
+    // the most heap in use at once, as sampled by startHeapSampler
+    private static final AtomicLong peakHeapUsed = new AtomicLong();
+
+    private static final Metrics.Timer pqEncodeTime = Metrics.timer("coherepedia_build_pq_encode_seconds", "Time to PQ-encode a row");
+    private static final Metrics.Timer lvqEncodeTime = Metrics.timer("coherepedia_build_lvq_encode_seconds", "Time to encode a row's rerank vector (LVQ or full) and write it to the index");
 
-    @SuppressWarnings({"unchecked", "rawtypes"})
     public static void main(String[] args) throws IOException {
         log("Heap space available is %s", Runtime.getRuntime().maxMemory());
+        startHeapSampler();
+        Metrics.registerJvmMetrics();
+        if (config.getBuildMetricsPort() > 0) {
+            serveMetrics(config.getBuildMetricsPort());
+        }
+
+        try {
+            var arguments = Arrays.asList(args);
+            if (arguments.contains("--append")) {
+                append(arguments.stream().filter(a -> !a.equals("--append")).toList());
+            } else if (arguments.contains("--partition")) {
+                int i = arguments.indexOf("--partition") + 1;
+                if (i == arguments.size()) {
+                    log("--partition needs a partition number, or all");
+                    System.exit(1);
+                }
+                buildPartitions(arguments.get(i), arguments.contains("--resume"));
+            } else if (arguments.contains("--filters")) {
+                writeMissing("filter attributes", Config::filtersPath, FilterIndex::write);
+            } else if (arguments.contains("--lexical")) {
+                writeMissing("lexical index", Config::lexicalPath, LexicalIndex::write);
+            } else {
+                if (config.getPartitions() > 0) {
+                    log("partitions is set in config.properties; build with --partition <n> or --partition all");
+                    System.exit(1);
+                }
+                build(arguments.contains("--resume"), IntStream.range(0, N_SHARDS).boxed().toList(), embedding -> true);
+            }
+        }
+        finally {
+            if (config.getBuildMetricsPort() > 0) {
+                // Jetty's threads are not daemons, so the build would never exit while it serves
+                Spark.stop();
+                Spark.awaitStop();
+            }
+        }
+        log("Peak heap usage was %,d MB (sampled every %d ms)", peakHeapUsed.get() / (1024 * 1024), HEAP_SAMPLE_MILLIS);
+    }
+
+    /**
+     * Build each of the given partitions (a number, or all) of a partitioned index in turn
+     */
+    private static void buildPartitions(String which, boolean resume) throws IOException {
+        var root = config;
+        if (root.getPartitions() < 1) {
+            log("Set partitions in config.properties to build a partitioned index");
+            System.exit(1);
+        }
+        root.validateDatasetPath();
+        root.maybeCreateIndexDirectory();
+        // one sample for both the codebooks and the centroids, if neither has been computed yet
+        var sample = new AtomicReference<List<VectorFloat<?>>>();
+        Supplier<List<VectorFloat<?>>> sampleOnce = () -> sample.updateAndGet(s -> s == null ? trainingVectors() : s);
+        ensureQuantization(sampleOnce);
+        var partitioning = Partitioning.forBuild(root, sampleOnce);
+        sample.set(null);
 
+        var partitions = which.equals("all")
+                         ? IntStream.range(0, root.getPartitions()).boxed().toList()
+                         : List.of(Integer.parseInt(which));
+        try {
+            for (int p : partitions) {
+                config = root.forPartition(p);
+                log("Building partition %d of %d", p, root.getPartitions());
+                build(resume && Files.exists(config.checkpointPath()), partitioning.shards(p), partitioning.accepts(p));
+            }
+        }
+        finally {
+            config = root;
+        }
+    }
+
+    /**
+     * @param shards the shards to read
+     * @param accepts which of their rows, by embedding, to index
+     */
+    private static void build(boolean resume, List<Integer> shards, Predicate<float[]> accepts) throws IOException {
         // setup
         config.validateDatasetPath();
         config.maybeCreateIndexDirectory();
-        var indexPath = config.annPath();
-        var mapPath = config.mapPath();
-        if (Files.exists(indexPath) || Files.exists(mapPath)) {
-            log("Index already exists at %s + %s -- remove these manually to rebuild", indexPath, mapPath);
+        var indexPath = config.annPath(0);
+        var contentPath = config.contentPath(0);
+        var checkpointPath = config.checkpointPath();
+        if (resume && !Files.exists(checkpointPath)) {
+            log("No checkpoint found at %s to resume from", checkpointPath);
+            System.exit(1);
+        }
+        if (!resume && (Files.exists(indexPath) || Files.exists(contentPath))) {
+            log("Index already exists at %s + %s -- remove these manually to rebuild, or pass --resume to continue an interrupted build",
+                indexPath, contentPath);
+            System.exit(1);
+        }
+
+        // compute PQ from a sample of all the shards
+        ensureQuantization(BuildIndex::trainingVectors);
+
+        // set up the index builder
+        BuildCheckpoint checkpoint = null;
+        if (resume) {
+            checkpoint = BuildCheckpoint.load(checkpointPath);
+            log("Resuming from checkpoint of %,d rows from %d completed shards",
+                checkpoint.watermark(), checkpoint.completedShards().size());
+            pqCodes = new PQCodes(TOTAL_ROWS, checkpoint.pqVectors());
+        } else {
+            pqCodes = new PQCodes(TOTAL_ROWS);
+        }
+        PQVectors pqVectors = new PQVectors(pq, pqCodes);
+        builder = newGraphBuilder(pqVectors);
+        if (checkpoint != null) {
+            checkpoint.loadGraph(builder);
+        }
+        var writerBuilder = newWriterBuilder(indexPath);
+        // (this does not truncate an existing file, so on resume the checkpointed inline vectors are kept)
+        writer = writerBuilder.build();
+        // likewise the binary vectors
+        bqWriter = profile.firstPass() == QuantizationProfile.FirstPass.BQ ? new BinaryVectors.Writer(config.bqVectorsPath(0), DIMENSION) : null;
+
+        // set up the content store
+        log("Creating index for up to %,d rows", TOTAL_ROWS);
+        var completedShards = new TreeSet<Integer>();
+        if (checkpoint != null) {
+            // discard content from shards that were in flight when the build stopped
+            content = ColumnarContent.Writer.reopen(contentPath, checkpoint.watermark());
+            completedShards.addAll(checkpoint.completedShards());
+        } else {
+            content = ColumnarContent.Writer.create(contentPath, 0);
+        }
+
+        // build the graph, checkpointing after every group of shards
+        var pipeline = newPipeline(config::filenameForShard, accepts);
+        var remaining = shards.stream().filter(i -> !completedShards.contains(i)).toList();
+        int groupSize = config.getCheckpointShards() > 0 ? config.getCheckpointShards() : shards.size();
+        for (int i = 0; i < remaining.size(); i += groupSize) {
+            var group = remaining.subList(i, Math.min(i + groupSize, remaining.size()));
+            pipeline.run(group);
+            completedShards.addAll(group);
+            if (config.getCheckpointShards() > 0 && completedShards.size() < shards.size()) {
+                log("Checkpointing after %d of %d shards", completedShards.size(), shards.size());
+                long start = System.nanoTime();
+                // reopen the writer so the inline vectors it has buffered are on disk before the checkpoint is
+                writer.close();
+                content.flush();
+                BuildCheckpoint.write(checkpointPath, completedShards, pqVectors, builder.getGraph());
+                writer = writerBuilder.build();
+                log("Checkpoint of %,d MB took %,d s", Files.size(checkpointPath) / (1024 * 1024), (System.nanoTime() - start) / 1_000_000_000);
+            }
+        }
+
+        finish(pqVectors, 0, 0);
+        Files.deleteIfExists(checkpointPath);
+        config.publishGeneration(0);
+        log("Wrote index of %s vectors", builder.getGraph().size());
+    }
+
+    /**
+     * Add the rows from the given Arrow files to the current generation of the index, writing the
+     * result as a new generation.  The codebooks are reused as-is, and the graph is loaded from the
+     * previous generation's snapshot, so only the new rows are encoded and inserted.
+     * <p>
+     * The rest is proportional to the whole index, not the new rows: the snapshot and every previous
+     * PQ code are loaded onto the heap, and finish() cleans up the whole graph and rewrites its edge
+     * lists and compressed vectors.  See "Appending new shards" in the README.
+     */
+    private static void append(List<String> filenames) throws IOException {
+        if (config.getPartitions() > 0) {
+            log("Appending to a partitioned index is not supported; rebuild its partitions instead");
+            System.exit(1);
+        }
+        config.validateIndexExists();
+        int previous = config.currentGeneration();
+        int generation = previous + 1;
+        var graphPath = config.graphPath(previous);
+        if (!Files.exists(graphPath)) {
+            log("No graph snapshot at %s -- the index must be rebuilt before it can be appended to", graphPath);
             System.exit(1);
         }
+        profile = QuantizationProfile.load(config.profilePath());
+        loadQuantization();
+
+        log("Counting rows in %d new shards", filenames.size());
+        int newRows = filenames.stream().mapToInt(BuildIndex::countRows).sum();
+
+        PQVectors previousVectors;
+        try (var in = new SimpleReader(config.pqVectorsPath(previous))) {
+            previousVectors = PQVectors.load(in);
+        }
+        int firstId = previousVectors.count();
+        log("Appending %,d rows to generation %d of %,d rows", newRows, previous, firstId);
+        pqCodes = new PQCodes(firstId + newRows, previousVectors);
+        var pqVectors = new PQVectors(pq, pqCodes);
+        builder = newGraphBuilder(pqVectors);
+        try (var in = new SimpleReader(graphPath)) {
+            builder.load(in);
+        }
 
-        // compute PQ from the first shard
+        Files.createDirectories(config.generationDirectory(generation));
+        // Each node's position in the .ann file depends only on its id, so starting from a copy of the
+        // previous generation leaves the existing inline vectors where they belong; writing the edge lists
+        // at the end only touches the features it is given, i.e. none.
+        Files.copy(config.annPath(previous), config.annPath(generation), StandardCopyOption.REPLACE_EXISTING);
+        writer = newWriterBuilder(config.annPath(generation)).build();
+        bqWriter = null;
+        if (profile.firstPass() == QuantizationProfile.FirstPass.BQ) {
+            // the same goes for the binary vectors
+            Files.copy(config.bqVectorsPath(previous), config.bqVectorsPath(generation), StandardCopyOption.REPLACE_EXISTING);
+            bqWriter = new BinaryVectors.Writer(config.bqVectorsPath(generation), DIMENSION);
+        }
+        content = ColumnarContent.Writer.create(config.contentPath(generation), firstId);
+
+        newPipeline(filenames::get, embedding -> true).run(IntStream.range(0, filenames.size()).boxed().toList());
+
+        finish(pqVectors, generation, firstId);
+        config.publishGeneration(generation);
+        log("Published generation %d with %,d vectors", generation, builder.getGraph().size());
+    }
+
+    /**
+     * @return the vectors to train the codebooks from: a sample across all shards, or
+     * (if training_sample_size is 0) every row of the first shard
+     */
+    static List<VectorFloat<?>> trainingVectors() {
+        if (config.getTrainingSampleSize() > 0) {
+            return TrainingSample.sample(config, N_SHARDS, config.getTrainingSampleSize(), 42);
+        }
+        var vectors = new ArrayList<VectorFloat<?>>();
+        forEachEmbedding(config.filenameForShard(0), embedding -> vectors.add(vts.createFloatVector(embedding)));
+        return vectors;
+    }
+
+    static ProductQuantization computePQ(RandomAccessVectorValues ravv) {
+        return computePQ(ravv, QuantizationProfile.DEFAULT.pqSubspaces());
+    }
+
+    static ProductQuantization computePQ(RandomAccessVectorValues ravv, int subspaces) {
+        return ProductQuantization.compute(ravv, // the vector source
+                                           subspaces, // number of subquantizers = number of bytes in the output
+                                           256, // number of clusters per subquantizer
+                                           false); // don't center the vectors first since we're using angular similarity
+    }
+
+    /**
+     * Load the codebooks, or train them from the sample and save them (with the quantization
+     * profile they are for) if this is the first build
+     */
+    private static void ensureQuantization(Supplier<List<VectorFloat<?>>> sample) throws IOException {
         var pqPath = config.pqPath();
         var lvqPath = config.lvqPath();
-        if (pqPath.toFile().exists() && lvqPath.toFile().exists()) {
-            log("Loading PQ and LVQ from previously saved files");
-            pq = ProductQuantization.load(new SimpleReader(pqPath));
-            lvq = LocallyAdaptiveVectorQuantization.load(new SimpleReader(lvqPath));
-        } else {
-            log("Loading vectors for quantization");
-            var vectors = new ArrayList<VectorFloat<?>>();
-            forEachRow(config.filenameForShard(0), (row, embedding) -> vectors.add(vts.createFloatVector(embedding)));
-            var ravv = new ListRandomAccessVectorValues(vectors, DIMENSION);
-
-            log("Computing PQ");
-            pq = ProductQuantization.compute(ravv, // the vector source
-                                             DIMENSION * 4 / 64, // number of subquantizers = number of bytes in the output
-                                             256, // number of clusters per subquantizer
-                                             false); // don't center the vectors first since we're using angular similarity
-            try (var out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(pqPath.toFile())))) {
-                pq.write(out);
+        profile = config.getQuantizationProfile();
+        if (pqPath.toFile().exists()) {
+            // codebooks saved before profiles were are for the default profile
+            var saved = QuantizationProfile.load(config.profilePath());
+            if (!saved.equals(profile)) {
+                log("The codebooks in %s were trained for %s, but config.properties asks for %s -- " +
+                    "restore the settings, or remove the index directory to rebuild with the new ones",
+                    config.profilePath().getParent(), saved, profile);
+                System.exit(1);
             }
+            if (profile.rerank() != QuantizationProfile.Rerank.LVQ || lvqPath.toFile().exists()) {
+                loadQuantization();
+                return;
+            }
+        }
+
+        log("Loading vectors for quantization");
+        var ravv = new ListRandomAccessVectorValues(sample.get(), DIMENSION);
 
+        log("Computing PQ with %d subspaces", profile.pqSubspaces());
+        pq = computePQ(ravv, profile.pqSubspaces());
+        try (var out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(pqPath.toFile())))) {
+            pq.write(out);
+        }
+
+        if (profile.rerank() == QuantizationProfile.Rerank.LVQ) {
             log("Computing LVQ");
             lvq = LocallyAdaptiveVectorQuantization.compute(ravv);
             try (var out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(lvqPath.toFile())))) {
                 lvq.write(out);
             }
-
-            log("Quantization complete");
         }
+        profile.save(config.profilePath());
 
-        // set up the index builder
-        pqVectorsList = new ArrayList<>(TOTAL_ROWS);
-        PQVectors pqVectors = new PQVectors(pq, pqVectorsList);
-        builder = new GraphIndexBuilder(BuildScoreProvider.pqBuildScoreProvider(VectorSimilarityFunction.COSINE, pqVectors),
-                                        DIMENSION,
-                                        48,   // degree
-                                        128,  // search width during construction
-                                        1.2f, // allow exceeding degree by this much temporarily
-                                        1.2f, // diversity "alpha" parameter
-                                        PhysicalCoreExecutor.pool(), ForkJoinPool.commonPool());
-        var lvqFeature = new LVQ(lvq);
-        var writerBuilder = new OnDiskGraphIndexWriter.Builder(builder.getGraph(), indexPath)
-                            .with(lvqFeature)
-                            .withMapper(new OnDiskGraphIndexWriter.IdentityMapper());
-        writer = writerBuilder.build();
+        log("Quantization complete: %s", profile);
+    }
 
-        // set up Chronicle Map
-        log("Creating index for %,d rows", TOTAL_ROWS);
-        contentMap = ChronicleMapBuilder.of((Class<Integer>) (Class) Integer.class, (Class<RowData>) (Class) RowData.class)
-                                        .averageValueSize(768) // url (~200) + title (~50) + text (~500)
-                                        .entries(TOTAL_ROWS)
-                                        .createPersistedTo(mapPath.toFile());
+    private static void loadQuantization() throws IOException {
+        log("Loading codebooks from previously saved files, for %s", profile);
+        pq = ProductQuantization.load(new SimpleReader(config.pqPath()));
+        lvq = profile.rerank() == QuantizationProfile.Rerank.LVQ
+              ? LocallyAdaptiveVectorQuantization.load(new SimpleReader(config.lvqPath()))
+              : null;
+    }
 
-        // build the graph
-        IntStream.range(0, N_SHARDS).parallel().forEach(BuildIndex::processShard);
+    private static GraphIndexBuilder newGraphBuilder(PQVectors pqVectors) {
+        return new GraphIndexBuilder(BuildScoreProvider.pqBuildScoreProvider(VectorSimilarityFunction.COSINE, pqVectors),
+                                     DIMENSION,
+                                     48,   // degree
+                                     128,  // search width during construction
+                                     1.2f, // allow exceeding degree by this much temporarily
+                                     1.2f, // diversity "alpha" parameter
+                                     PhysicalCoreExecutor.pool(), ForkJoinPool.commonPool());
+    }
+
+    /**
+     * The rerank vectors are the only inline feature, so searches find the reranker to use (through
+     * View.rerankerFor) from the index itself
+     */
+    private static OnDiskGraphIndexWriter.Builder newWriterBuilder(Path path) {
+        Feature rerankFeature = profile.rerank() == QuantizationProfile.Rerank.LVQ ? new LVQ(lvq) : new InlineVectors(DIMENSION);
+        return new OnDiskGraphIndexWriter.Builder(builder.getGraph(), path)
+               .with(rerankFeature)
+               .withMapper(new OnDiskGraphIndexWriter.IdentityMapper());
+    }
+
+    private static IngestPipeline newPipeline(IntFunction<String> filenameForShard, Predicate<float[]> accepts) {
+        return new IngestPipeline(config,
+                                  (shard, consumer) -> arrowShards.forEachRowParallel(filenameForShard.apply(shard), ColumnarContent.ALL_COLUMNS, (row, embedding) -> {
+                                      if (accepts.test(embedding)) {
+                                          consumer.accept(row, embedding);
+                                      }
+                                  }),
+                                  BuildIndex::encode,
+                                  row -> builder.addGraphNode(row.id(), row.vector()), // threadsafe
+                                  row -> content.put(row.id(), row.row()));
+    }
+
+    /**
+     * Write out everything for the given generation once all of its rows have been ingested
+     */
+    private static void finish(PQVectors pqVectors, int generation, int firstId) throws IOException {
         // sanity checks
-        if (pqVectorsList.size() != builder.getGraph().size()) {
+        if (pqCodes.size() != builder.getGraph().size()) {
             throw new IllegalStateException("PQ vectors and graph size mismatch");
         }
-        if (contentMap.size() != builder.getGraph().size()) {
-            throw new IllegalStateException("Content map and graph size mismatch");
+        if (content.size() != builder.getGraph().size() - firstId) {
+            throw new IllegalStateException("Content store and graph size mismatch");
         }
 
+        // (this visits every node, even on an append that only inserted a few)
         log("Final cleanup");
         builder.cleanup();
 
@@ -138,78 +427,124 @@ public class BuildIndex {
         writer.write(Map.of());
 
         writer.close();
-        contentMap.close();
+        content.close();
+
+        log("Indexing filter attributes");
+        FilterIndex.write(config.filtersPath(generation), config.contentPath(generation));
+
+        log("Building lexical index");
+        LexicalIndex.write(config.lexicalPath(generation), config.contentPath(generation));
+
+        if (bqWriter != null) {
+            log("Writing binary vectors header");
+            bqWriter.finish(pqCodes.size());
+            bqWriter.close();
+            bqWriter = null;
+        }
 
         log("Writing compressed vectors");
-        try (var pqvOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(config.pqVectorsPath().toFile())))) {
+        try (var pqvOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(config.pqVectorsPath(generation).toFile())))) {
             pqVectors.write(pqvOut);
         }
 
-        log("Wrote index of %s vectors", builder.getGraph().size());
+        log("Writing graph snapshot for future appends");
+        try (var graphOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(config.graphPath(generation).toFile())))) {
+            builder.getGraph().save(graphOut);
+        }
     }
 
-    @SuppressWarnings("SynchronizeOnNonFinalField")
-    private static void processShard(int shardIndex) {
-        forEachRow(config.filenameForShard(shardIndex), (row, embedding) -> {
-            var vector = vts.createFloatVector(embedding);
-            // wrap raw embedding in VectorFloat
-            // id is derived from inserting into the PQ list
-            int id;
-            synchronized (pqVectorsList) {
-                id = pqVectorsList.size();
-                pqVectorsList.add(pq.encode(vector));
-            }
-            if (id % 100_000 == 0) {
-                log("%,d rows processed", id);
+    private interface SecondaryIndexWriter {
+        void write(Path path, Path contentPath) throws IOException;
+    }
+
+    /**
+     * Build a secondary index from the content of every generation (of every partition, if the
+     * index is partitioned) that was built without it
+     */
+    private static void writeMissing(String what, BiFunction<Config, Integer, Path> path, SecondaryIndexWriter writer) throws IOException {
+        var configs = config.getPartitions() > 0
+                      ? IntStream.range(0, config.getPartitions()).mapToObj(config::forPartition).toList()
+                      : List.of(config);
+        for (var c : configs) {
+            for (int g = 0; g <= c.currentGeneration(); g++) {
+                if (!Files.exists(path.apply(c, g))) {
+                    log("Building %s of %sgeneration %d", what, c.getPartition() < 0 ? "" : "partition " + c.getPartition() + " ", g);
+                    writer.write(path.apply(c, g), c.contentPath(g));
+                }
             }
+        }
+    }
+
+    private static IngestPipeline.EncodedRow encode(RowData row, float[] embedding) {
+        // wrap raw embedding in VectorFloat
+        var vector = vts.createFloatVector(embedding);
+        // id is derived from appending to the PQ codes (lock-free)
+        long start = System.nanoTime();
+        int id = pqCodes.append(pq.encode(vector));
+        start = pqEncodeTime.recordSince(start);
 
-            // write the vector to the index so it can be read by rerank (call is threadsafe)
-            try {
+        // write the vector to the index so it can be read by rerank, and its bits for a binary first pass
+        // (both calls are threadsafe)
+        try {
+            if (profile.rerank() == QuantizationProfile.Rerank.LVQ) {
                 writer.writeInline(id, Feature.singleState(FeatureId.LVQ, new LVQ.State(lvq.encode(vector))));
+            } else {
+                writer.writeInline(id, Feature.singleState(FeatureId.INLINE_VECTORS, new InlineVectors.State(vector)));
             }
-            catch (IOException e) {
-                throw new UncheckedIOException(e);
-            }
-            // add the vector to the graph (also threadsafe)
-            builder.addGraphNode(id, vector);
-            contentMap.put(id, row);
-        });
-        log("Shard %d completed", shardIndex);
-    }
-
-    private static void forEachRow(String filename, BiConsumer<RowData, float[]> consumer) {
-        try (var allocator = new RootAllocator();
-             var fileInputStream = new FileInputStream(filename);
-             var reader = new ArrowStreamReader(fileInputStream, allocator))
-        {
-            var root = reader.getVectorSchemaRoot();
-
-            while (reader.loadNextBatch()) {
-                for (int i = 0; i < root.getRowCount() / config.getDivisor(); i++) {
-                    String url = root.getVector("url").getObject(i).toString();
-                    String title = root.getVector("title").getObject(i).toString();
-                    String text = root.getVector("text").getObject(i).toString();
-                    // TODO is there a way to read floats directly instead of going through String first?
-                    var jsonList = (JsonStringArrayList<?>) root.getVector("emb").getObject(i);
-                    float[] embedding = convertToFloatArray(jsonList);
-
-                    consumer.accept(new RowData(url, title, text), embedding);
-                }
+            if (bqWriter != null) {
+                bqWriter.write(id, vector);
             }
-        } catch (IOException e) {
+        }
+        catch (IOException e) {
             throw new UncheckedIOException(e);
         }
+        lvqEncodeTime.recordSince(start);
+        return new IngestPipeline.EncodedRow(id, vector, row);
     }
 
-    private static float[] convertToFloatArray(JsonStringArrayList<?> jsonList) {
-        float[] floatArray = new float[jsonList.size()];
-        for (int i = 0; i < jsonList.size(); i++) {
-            floatArray[i] = Float.parseFloat(jsonList.get(i).toString());
-        }
-        return floatArray;
+    static void forEachRow(String filename, BiConsumer<RowData, float[]> consumer) {
+        arrowShards.forEachRow(filename, ColumnarContent.ALL_COLUMNS, consumer);
+    }
+
+    /**
+     * As forEachRow, but without decoding the content, for callers that only want the embeddings
+     */
+    static void forEachEmbedding(String filename, Consumer<float[]> consumer) {
+        arrowShards.forEachRow(filename, Set.of(), (row, embedding) -> consumer.accept(embedding));
+    }
+
+    private static int countRows(String filename) {
+        return arrowShards.countRows(filename);
+    }
+
+    /**
+     * Serve /metrics while the build runs, so it can be scraped like the search server
+     */
+    private static void serveMetrics(int port) {
+        Spark.port(port);
+        Spark.get("/metrics", (req, res) -> {
+            res.type("text/plain; version=0.0.4");
+            return Metrics.prometheus();
+        });
+        log("Serving build metrics on port %d", port);
+    }
+
+    /**
+     * Sample the total heap in use every HEAP_SAMPLE_MILLIS, keeping the most seen.  (Summing each
+     * heap pool's own peak would overstate it, since the pools peak at different times.)
+     */
+    private static void startHeapSampler() {
+        var memory = ManagementFactory.getMemoryMXBean();
+        var sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            var t = new Thread(r, "heap-sampler");
+            t.setDaemon(true);
+            return t;
+        });
+        sampler.scheduleAtFixedRate(() -> peakHeapUsed.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max),
+                                    0, HEAP_SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
     }
 
-    private static void log(String message, Object... args) {
+    static void log(String message, Object... args) {
         var timestamp = LocalTime.now().format(DateTimeFormatter.ofPattern("HH:mm:ss"));
         System.out.format(timestamp + ": " + message + "%n", args);
     }
@@ -0,0 +1,189 @@
+package io.github.jbellis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import io.github.jbellis.jvector.vector.VectorizationProvider;
+import io.github.jbellis.jvector.vector.types.VectorFloat;
+import io.github.jbellis.jvector.vector.types.VectorTypeSupport;
+
+/**
+ * A bounded LRU cache in front of another EmbeddingProvider, keyed on normalized query text
+ * (case-folded, with whitespace collapsed), since popular queries repeat heavily and the remote
+ * embedding call dominates search latency.
+ * <p>
+ * Callers get their own copy of each vector, so one that normalizes or otherwise modifies the
+ * vector in place cannot corrupt the cached one for everyone else.
+ * <p>
+ * If given a path, the cache is loaded from it at startup and saved back to it at shutdown.
+ */
+class CachingEmbeddingProvider implements EmbeddingProvider {
+    private static final VectorTypeSupport vts = VectorizationProvider.getInstance().getVectorTypeSupport();
+    private static final int MAGIC = 0xc0ffee09;
+
+    private final EmbeddingProvider delegate;
+    private final Map<String, VectorFloat<?>> cache;
+    private final Metrics.Counter hits = Metrics.counter("coherepedia_embedding_cache_hits_total", "Query embeddings found in the cache");
+    private final Metrics.Counter misses = Metrics.counter("coherepedia_embedding_cache_misses_total", "Query embeddings not found in the cache");
+
+    CachingEmbeddingProvider(EmbeddingProvider delegate, int capacity, Path persistPath) {
+        this.delegate = delegate;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, VectorFloat<?>> eldest) {
+                return size() > capacity;
+            }
+        };
+
+        if (persistPath != null) {
+            if (Files.exists(persistPath)) {
+                load(persistPath);
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> save(persistPath), "embedding-cache-save"));
+        }
+    }
+
+    @Override
+    public VectorFloat<?> embed(String text) {
+        var key = normalize(text);
+        VectorFloat<?> v;
+        synchronized (cache) {
+            v = cache.get(key);
+        }
+        if (v != null) {
+            hits.increment();
+            return v.copy();
+        }
+
+        // concurrent misses on the same text may both call the delegate; that is harmless
+        misses.increment();
+        v = delegate.embed(text);
+        var cached = v.copy();
+        synchronized (cache) {
+            cache.put(key, cached);
+        }
+        return v;
+    }
+
+    @Override
+    public List<VectorFloat<?>> embedAll(List<String> texts) {
+        var vectors = new ArrayList<VectorFloat<?>>(Collections.nCopies(texts.size(), null));
+        var missing = new ArrayList<Integer>();
+        synchronized (cache) {
+            for (int i = 0; i < texts.size(); i++) {
+                var v = cache.get(normalize(texts.get(i)));
+                if (v == null) {
+                    missing.add(i);
+                } else {
+                    vectors.set(i, v.copy());
+                }
+            }
+        }
+        hits.add(texts.size() - missing.size());
+        misses.add(missing.size());
+        if (missing.isEmpty()) {
+            return vectors;
+        }
+
+        // one call to the delegate for all the misses
+        var embedded = delegate.embedAll(missing.stream().map(texts::get).toList());
+        synchronized (cache) {
+            for (int j = 0; j < missing.size(); j++) {
+                int i = missing.get(j);
+                cache.put(normalize(texts.get(i)), embedded.get(j).copy());
+                vectors.set(i, embedded.get(j));
+            }
+        }
+        return vectors;
+    }
+
+    long hits() {
+        return hits.get();
+    }
+
+    long misses() {
+        return misses.get();
+    }
+
+    int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    static String normalize(String text) {
+        return text.strip().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+
+    private void load(Path path) {
+        try (var in = new DataInputStream(new BufferedInputStream(new FileInputStream(path.toFile())))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("not an embedding cache, or one from an older version");
+            }
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                var key = new String(in.readNBytes(in.readInt()), StandardCharsets.UTF_8);
+                var vector = new float[in.readInt()];
+                for (int j = 0; j < vector.length; j++) {
+                    vector[j] = in.readFloat();
+                }
+                cache.put(key, vts.createFloatVector(vector));
+            }
+            System.out.format("Loaded %,d cached query embeddings from %s%n", n, path);
+        }
+        catch (IOException | RuntimeException e) {
+            // the cache is only an optimization, so start empty rather than failing
+            System.out.format("Ignoring unreadable embedding cache %s: %s%n", path, e);
+            cache.clear();
+        }
+    }
+
+    private void save(Path path) {
+        ArrayList<Map.Entry<String, VectorFloat<?>>> entries;
+        synchronized (cache) {
+            // least recently used first, so reloading reproduces the same LRU order
+            entries = new ArrayList<>(cache.entrySet());
+        }
+        var tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (var out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp.toFile())))) {
+            out.writeInt(MAGIC);
+            out.writeInt(entries.size());
+            for (var entry : entries) {
+                // length-prefixed UTF-8, since writeUTF cannot write keys over 64KB
+                var key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(key.length);
+                out.write(key);
+                var v = entry.getValue();
+                out.writeInt(v.length());
+                for (int j = 0; j < v.length(); j++) {
+                    out.writeFloat(v.get(j));
+                }
+            }
+        }
+        catch (IOException e) {
+            System.out.format("Failed to save embedding cache to %s: %s%n", path, e);
+            return;
+        }
+        try {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            System.out.format("Failed to save embedding cache to %s: %s%n", path, e);
+        }
+    }
+}
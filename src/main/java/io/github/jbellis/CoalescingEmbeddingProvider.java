@@ -0,0 +1,114 @@
+package io.github.jbellis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import io.github.jbellis.jvector.vector.types.VectorFloat;
+
+/**
+ * Batches concurrent embed calls into single calls to another EmbeddingProvider.  The first text
+ * to arrive opens a window; every text that arrives before it closes (or before the batch is full)
+ * is embedded by the same embedAll call, and each caller waits for its own vector.  Under load,
+ * this turns many small Cohere round trips into a few larger ones, at the cost of up to one window
+ * of added latency when idle.
+ */
+class CoalescingEmbeddingProvider implements EmbeddingProvider {
+    // the most texts Cohere accepts in one embed request
+    static final int MAX_BATCH = 96;
+
+    private static final Metrics.Counter calls = Metrics.counter("coherepedia_embedding_calls_total", "Batched calls to the embedding service made by coalescing");
+    private static final Metrics.Counter texts = Metrics.counter("coherepedia_embedding_texts_total", "Texts sent to the embedding service in coalesced batches");
+
+    private record Pending(String text, CompletableFuture<VectorFloat<?>> future) {}
+
+    private final EmbeddingProvider delegate;
+    private final long windowNanos;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        var t = new Thread(r, "embedding-coalescer");
+        t.setDaemon(true);
+        return t;
+    });
+    // the calls to the delegate just wait on the network, so each gets its own virtual thread
+    private final ExecutorService callers = Executors.newVirtualThreadPerTaskExecutor();
+
+    // a lock rather than synchronized, so that virtual threads waiting for it don't pin their carriers
+    private final ReentrantLock lock = new ReentrantLock();
+    private List<Pending> batch = new ArrayList<>();
+
+    CoalescingEmbeddingProvider(EmbeddingProvider delegate, long windowMillis) {
+        this.delegate = delegate;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    }
+
+    @Override
+    public VectorFloat<?> embed(String text) {
+        var pending = new Pending(text, new CompletableFuture<>());
+        lock.lock();
+        try {
+            batch.add(pending);
+            if (batch.size() == 1) {
+                var opened = batch;
+                timer.schedule(() -> flush(opened), windowNanos, TimeUnit.NANOSECONDS);
+            }
+            if (batch.size() >= MAX_BATCH) {
+                flush(batch);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+
+        try {
+            return pending.future().join();
+        }
+        catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException re ? re : e;
+        }
+    }
+
+    /**
+     * Already a batch, so it goes straight to the delegate
+     */
+    @Override
+    public List<VectorFloat<?>> embedAll(List<String> texts) {
+        return delegate.embedAll(texts);
+    }
+
+    /**
+     * Send `toFlush` to the delegate, unless it has already been sent (when it filled up before its
+     * window closed)
+     */
+    private void flush(List<Pending> toFlush) {
+        lock.lock();
+        try {
+            if (batch != toFlush) {
+                return;
+            }
+            batch = new ArrayList<>();
+        }
+        finally {
+            lock.unlock();
+        }
+
+        callers.execute(() -> {
+            calls.increment();
+            texts.add(toFlush.size());
+            try {
+                var vectors = delegate.embedAll(toFlush.stream().map(Pending::text).toList());
+                for (int i = 0; i < toFlush.size(); i++) {
+                    toFlush.get(i).future().complete(vectors.get(i));
+                }
+            }
+            catch (RuntimeException e) {
+                toFlush.forEach(p -> p.future().completeExceptionally(e));
+            }
+        });
+    }
+}
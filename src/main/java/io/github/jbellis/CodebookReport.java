@@ -0,0 +1,97 @@
+package io.github.jbellis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import io.github.jbellis.jvector.graph.ListRandomAccessVectorValues;
+import io.github.jbellis.jvector.pq.PQVectors;
+import io.github.jbellis.jvector.pq.ProductQuantization;
+import io.github.jbellis.jvector.vector.VectorSimilarityFunction;
+import io.github.jbellis.jvector.vector.VectorUtil;
+import io.github.jbellis.jvector.vector.VectorizationProvider;
+import io.github.jbellis.jvector.vector.types.ByteSequence;
+import io.github.jbellis.jvector.vector.types.VectorFloat;
+import io.github.jbellis.jvector.vector.types.VectorTypeSupport;
+
+import static io.github.jbellis.BuildIndex.DIMENSION;
+import static io.github.jbellis.BuildIndex.N_SHARDS;
+import static io.github.jbellis.BuildIndex.log;
+
+/**
+ * Compares PQ codebooks trained on the first shard with codebooks trained on a sample across all
+ * shards, by reconstruction error and by recall@10 of PQ-only scoring, against a held-out set of
+ * vectors that is itself sampled from every shard.
+ * Usage: CodebookReport [base vectors] [queries]
+ */
+public class CodebookReport {
+    private static final VectorTypeSupport vts = VectorizationProvider.getInstance().getVectorTypeSupport();
+    private static final Config config = new Config();
+    private static final int TOP_K = 10;
+
+    public static void main(String[] args) {
+        config.validateDatasetPath();
+        int nBase = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int nQueries = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        // a different seed from BuildIndex's, so the evaluation set is (almost) disjoint from the training sample
+        var heldOut = new ArrayList<>(TrainingSample.sample(config, N_SHARDS, nBase + nQueries, 7));
+        Collections.shuffle(heldOut, new Random(0));
+        var queries = heldOut.subList(0, nQueries);
+        var base = heldOut.subList(nQueries, heldOut.size());
+        log("Computing exact top %d for %d queries against %,d vectors", TOP_K, queries.size(), base.size());
+        var groundTruth = queries.parallelStream()
+                                 .map(q -> topK(IntStream.range(0, base.size()).mapToObj(i -> VectorSimilarityFunction.COSINE.compare(q, base.get(i)))))
+                                 .toList();
+
+        var shard0 = new ArrayList<VectorFloat<?>>();
+        BuildIndex.forEachEmbedding(config.filenameForShard(0), embedding -> shard0.add(vts.createFloatVector(embedding)));
+        var sampled = TrainingSample.sample(config, N_SHARDS, Math.max(config.getTrainingSampleSize(), 1), 42);
+
+        log("Training from shard 0 (%,d vectors)", shard0.size());
+        var shard0Pq = BuildIndex.computePQ(new ListRandomAccessVectorValues(shard0, DIMENSION));
+        log("Training from a sample of all shards (%,d vectors)", sampled.size());
+        var sampledPq = BuildIndex.computePQ(new ListRandomAccessVectorValues(sampled, DIMENSION));
+
+        report("shard 0", shard0Pq, base, queries, groundTruth);
+        report("sampled", sampledPq, base, queries, groundTruth);
+    }
+
+    private static void report(String label, ProductQuantization pq, List<VectorFloat<?>> base, List<VectorFloat<?>> queries, List<Set<Integer>> groundTruth) {
+        List<ByteSequence<?>> codes = base.parallelStream().<ByteSequence<?>>map(pq::encode).toList();
+
+        double error = IntStream.range(0, base.size()).parallel().mapToDouble(i -> {
+            var decoded = vts.createFloatVector(DIMENSION);
+            pq.decode(codes.get(i), decoded);
+            return VectorUtil.squareL2Distance(base.get(i), decoded);
+        }).sum();
+
+        var pqv = new PQVectors(pq, codes);
+        double recall = IntStream.range(0, queries.size()).parallel().mapToDouble(i -> {
+            var sf = pqv.scoreFunctionFor(queries.get(i), VectorSimilarityFunction.COSINE);
+            var approximate = topK(IntStream.range(0, base.size()).mapToObj(sf::similarityTo));
+            approximate.retainAll(groundTruth.get(i));
+            return (double) approximate.size() / TOP_K;
+        }).average().orElse(0);
+
+        log("%s: mean squared reconstruction error %.5f, PQ-only recall@%d %.3f",
+            label, error / base.size(), TOP_K, recall);
+    }
+
+    /**
+     * @return the indexes of the TOP_K highest scores
+     */
+    private static Set<Integer> topK(Stream<Float> scores) {
+        var scored = scores.toList();
+        return IntStream.range(0, scored.size()).boxed()
+                        .sorted(Comparator.<Integer, Float>comparing(scored::get).reversed())
+                        .limit(TOP_K)
+                        .collect(Collectors.toSet());
+    }
+}
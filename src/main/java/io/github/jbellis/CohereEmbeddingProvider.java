@@ -0,0 +1,56 @@
+package io.github.jbellis;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.cohere.api.Cohere;
+import com.cohere.api.requests.EmbedRequest;
+import com.cohere.api.types.EmbedInputType;
+import io.github.jbellis.jvector.vector.VectorizationProvider;
+import io.github.jbellis.jvector.vector.types.VectorFloat;
+import io.github.jbellis.jvector.vector.types.VectorTypeSupport;
+
+/**
+ * Embeds queries with the same Cohere model that produced the dataset's embeddings.
+ * One client is shared by all requests, so its connection pool is reused.
+ */
+class CohereEmbeddingProvider implements EmbeddingProvider {
+    private static final VectorTypeSupport vts = VectorizationProvider.getInstance().getVectorTypeSupport();
+    private static final String MODEL = "embed-multilingual-v3.0";
+    // the most texts Cohere accepts in one embed request
+    private static final int MAX_TEXTS_PER_REQUEST = 96;
+
+    private final Cohere cohere;
+
+    CohereEmbeddingProvider(String apiKey) {
+        cohere = Cohere.builder().token(apiKey).clientName("snippet").build();
+    }
+
+    @Override
+    public VectorFloat<?> embed(String text) {
+        return embedAll(List.of(text)).get(0);
+    }
+
+    @Override
+    public List<VectorFloat<?>> embedAll(List<String> texts) {
+        var vectors = new ArrayList<VectorFloat<?>>(texts.size());
+        for (int i = 0; i < texts.size(); i += MAX_TEXTS_PER_REQUEST) {
+            var batch = texts.subList(i, Math.min(i + MAX_TEXTS_PER_REQUEST, texts.size()));
+            var request = EmbedRequest.builder().texts(batch).model(MODEL).inputType(EmbedInputType.SEARCH_QUERY).build();
+            var response = cohere.embed(request).getEmbeddingsFloats();
+            if (response.isEmpty()) {
+                throw new IllegalStateException("No embeddings returned -- probably Cohere thinks your text is 'unsafe'");
+            }
+            response.get().getEmbeddings().forEach(e -> vectors.add(toVector(e)));
+        }
+        return vectors;
+    }
+
+    private static VectorFloat<?> toVector(List<Double> embeddings) {
+        var vector = new float[embeddings.size()];
+        for (int i = 0; i < embeddings.size(); i++) {
+            vector[i] = embeddings.get(i).floatValue();
+        }
+        return vts.createFloatVector(vector);
+    }
+}
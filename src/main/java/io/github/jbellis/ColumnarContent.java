@@ -0,0 +1,556 @@
+package io.github.jbellis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ObjIntConsumer;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+import com.github.luben.zstd.ZstdDictTrainer;
+import com.github.luben.zstd.ZstdException;
+
+/**
+ * Row content for a dense range of ids, stored column by column.  Rows are grouped into blocks of
+ * BLOCK_ROWS, and each column of a block is compressed on its own with zstd, so fetching one field
+ * of a row only decompresses that column of its block.  Blocks are far too small to compress well
+ * by themselves, so each column has a dictionary trained on the first rows written.
+ * <p>
+ * Three files share the base path: the compressed blocks (the path itself), the block index
+ * (path.idx) with each block's offset and lengths, and the dictionaries (path.dict).  The blocks
+ * are memory-mapped for reads; the index is small enough to keep on the heap.
+ */
+class ColumnarContent implements AutoCloseable {
+    enum Column {
+        URL, TITLE, TEXT;
+
+        String of(RowData row) {
+            return switch (this) {
+                case URL -> row.url();
+                case TITLE -> row.title();
+                case TEXT -> row.text();
+            };
+        }
+    }
+
+    static final Set<Column> ALL_COLUMNS = EnumSet.allOf(Column.class);
+    static final int BLOCK_ROWS = 32;
+    private static final int N_COLUMNS = Column.values().length;
+    private static final int MAGIC = 0xc0ffee10;
+
+    private final BlockIndex index;
+    private final ZstdDictDecompress[] dictionaries;
+    private final Arena arena;
+    private final MemorySegment data;
+
+    private ColumnarContent(BlockIndex index, ZstdDictDecompress[] dictionaries, Arena arena, MemorySegment data) {
+        this.index = index;
+        this.dictionaries = dictionaries;
+        this.arena = arena;
+        this.data = data;
+    }
+
+    static ColumnarContent open(Path path) throws IOException {
+        var index = BlockIndex.read(indexPath(path));
+        var dictionaries = Arrays.stream(readDictionaries(path))
+                                 .map(d -> d.length == 0 ? null : new ZstdDictDecompress(d))
+                                 .toArray(ZstdDictDecompress[]::new);
+        var arena = Arena.ofShared();
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+            return new ColumnarContent(index, dictionaries, arena, data);
+        }
+        catch (IOException | RuntimeException e) {
+            arena.close();
+            throw e;
+        }
+    }
+
+    int firstId() {
+        return index.firstId;
+    }
+
+    int size() {
+        return index.size;
+    }
+
+    /**
+     * @return the given columns of the row with the given id, leaving the others null;
+     * or null if the id is not in this store
+     */
+    RowData get(int id, Set<Column> columns) {
+        int local = id - index.firstId;
+        if (local < 0 || local >= index.size) {
+            return null;
+        }
+        int block = local / BLOCK_ROWS;
+        int row = local % BLOCK_ROWS;
+        return new RowData(columns.contains(Column.URL) ? field(block, Column.URL, row) : null,
+                           columns.contains(Column.TITLE) ? field(block, Column.TITLE, row) : null,
+                           columns.contains(Column.TEXT) ? field(block, Column.TEXT, row) : null);
+    }
+
+    /**
+     * Call the consumer with every row and its id, in id order, decompressing each block only once
+     */
+    void forEach(ObjIntConsumer<RowData> consumer) {
+        forEach(ALL_COLUMNS, consumer);
+    }
+
+    /**
+     * As above, but only reading the given columns and leaving the others null
+     */
+    void forEach(Set<Column> columns, ObjIntConsumer<RowData> consumer) {
+        var empty = new String[BLOCK_ROWS];
+        for (int block = 0; block < index.blocks; block++) {
+            int rows = Math.min(BLOCK_ROWS, index.size - block * BLOCK_ROWS);
+            var values = new String[N_COLUMNS][];
+            for (var column : Column.values()) {
+                values[column.ordinal()] = columns.contains(column) ? values(column(block, column), rows) : empty;
+            }
+            for (int r = 0; r < rows; r++) {
+                consumer.accept(new RowData(values[0][r], values[1][r], values[2][r]), index.firstId + block * BLOCK_ROWS + r);
+            }
+        }
+    }
+
+    private String field(int block, Column column, int row) {
+        return value(column(block, column), row);
+    }
+
+    /**
+     * @return the uncompressed values of the given column of the given block
+     */
+    private byte[] column(int block, Column column) {
+        int i = block * N_COLUMNS + column.ordinal();
+        var compressed = new byte[index.compressedLengths[i]];
+        MemorySegment.copy(data, ValueLayout.JAVA_BYTE, index.offsets[i], compressed, 0, compressed.length);
+        return decompress(compressed, dictionaries[column.ordinal()], index.rawLengths[i]);
+    }
+
+    private static String[] values(byte[] raw, int rows) {
+        var values = new String[rows];
+        for (int r = 0; r < rows; r++) {
+            values[r] = value(raw, r);
+        }
+        return values;
+    }
+
+    /**
+     * @return the value at the given position in an uncompressed column, where values are stored as
+     * a varint byte length followed by UTF-8
+     */
+    private static String value(byte[] raw, int row) {
+        int position = 0;
+        for (int r = 0; ; r++) {
+            int length = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = raw[position++];
+                length |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            if (r == row) {
+                return new String(raw, position, length, StandardCharsets.UTF_8);
+            }
+            position += length;
+        }
+    }
+
+    @Override
+    public void close() {
+        arena.close();
+    }
+
+    private static byte[] decompress(byte[] compressed, ZstdDictDecompress dictionary, int rawLength) {
+        return dictionary == null
+               ? Zstd.decompress(compressed, rawLength)
+               : Zstd.decompress(compressed, dictionary, rawLength);
+    }
+
+    private static Path indexPath(Path path) {
+        return path.resolveSibling(path.getFileName() + ".idx");
+    }
+
+    private static Path dictionaryPath(Path path) {
+        return path.resolveSibling(path.getFileName() + ".dict");
+    }
+
+    private static byte[][] readDictionaries(Path path) throws IOException {
+        try (var in = new DataInputStream(new BufferedInputStream(new FileInputStream(dictionaryPath(path).toFile())))) {
+            var dictionaries = new byte[N_COLUMNS][];
+            for (int c = 0; c < N_COLUMNS; c++) {
+                dictionaries[c] = new byte[in.readInt()];
+                in.readFully(dictionaries[c]);
+            }
+            return dictionaries;
+        }
+    }
+
+    private static void writeAtomically(Path path, IOConsumer<DataOutputStream> contents) throws IOException {
+        var tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (var out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp.toFile())))) {
+            contents.accept(out);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private interface IOConsumer<T> {
+        void accept(T t) throws IOException;
+    }
+
+    /**
+     * The offset, compressed length and uncompressed length of every column of every block
+     */
+    private static class BlockIndex {
+        final int firstId;
+        int size;
+        int blocks;
+        long[] offsets;
+        int[] compressedLengths;
+        int[] rawLengths;
+
+        BlockIndex(int firstId, int blocks) {
+            this.firstId = firstId;
+            this.blocks = blocks;
+            offsets = new long[Math.max(blocks, 1024) * N_COLUMNS];
+            compressedLengths = new int[offsets.length];
+            rawLengths = new int[offsets.length];
+        }
+
+        void set(int block, Column column, long offset, int compressedLength, int rawLength) {
+            int i = block * N_COLUMNS + column.ordinal();
+            if (i >= offsets.length) {
+                int length = Math.max(i + 1, offsets.length * 2);
+                offsets = Arrays.copyOf(offsets, length);
+                compressedLengths = Arrays.copyOf(compressedLengths, length);
+                rawLengths = Arrays.copyOf(rawLengths, length);
+            }
+            offsets[i] = offset;
+            compressedLengths[i] = compressedLength;
+            rawLengths[i] = rawLength;
+            blocks = Math.max(blocks, block + 1);
+        }
+
+        static BlockIndex read(Path path) throws IOException {
+            try (var in = new DataInputStream(new BufferedInputStream(new FileInputStream(path.toFile())))) {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Not a content index: " + path);
+                }
+                var index = new BlockIndex(in.readInt(), 0);
+                index.size = in.readInt();
+                int blocks = in.readInt();
+                for (int b = 0; b < blocks; b++) {
+                    for (var column : Column.values()) {
+                        index.set(b, column, in.readLong(), in.readInt(), in.readInt());
+                    }
+                }
+                return index;
+            }
+        }
+
+        void write(Path path) throws IOException {
+            writeAtomically(path, out -> {
+                out.writeInt(MAGIC);
+                out.writeInt(firstId);
+                out.writeInt(size);
+                out.writeInt(blocks);
+                for (int i = 0; i < blocks * N_COLUMNS; i++) {
+                    out.writeLong(offsets[i]);
+                    out.writeInt(compressedLengths[i]);
+                    out.writeInt(rawLengths[i]);
+                }
+            });
+        }
+    }
+
+    /**
+     * Builds a store from rows that may arrive in any order (put is threadsafe).  A block is
+     * compressed and appended as soon as all of its rows are in, once the dictionaries have been
+     * trained; flush() also writes the partially filled blocks, which are rewritten when they fill up,
+     * so that everything put so far is durable.
+     * <p>
+     * Only collecting rows into their blocks happens under the writer's lock.  The put that completes
+     * a block (or the sample) compresses and writes it (or trains the dictionaries) after releasing
+     * the lock, reserving its place in the file atomically, so concurrent writers compress in parallel.
+     */
+    static class Writer implements AutoCloseable {
+        private static final int DICTIONARY_SAMPLE_ROWS = 20_000;
+        private static final int DICTIONARY_SIZE = 64 * 1024;
+        private static final int LEVEL = 3;
+
+        private final Path path;
+        private final FileChannel data;
+        private final BlockIndex index;
+        // blocks that are not yet full, or that are waiting for the dictionaries
+        private final TreeMap<Integer, RowData[]> openBlocks = new TreeMap<>();
+        // null while the dictionaries are being trained, and after
+        private List<RowData> sample = new ArrayList<>();
+        private ZstdDictCompress[] dictionaries;
+        private final AtomicLong end;
+
+        private Writer(Path path, BlockIndex index, ZstdDictCompress[] dictionaries) throws IOException {
+            this.path = path;
+            this.index = index;
+            this.dictionaries = dictionaries;
+            data = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+            end = new AtomicLong(data.size());
+        }
+
+        /**
+         * Start a new store whose first row will have the given id
+         */
+        static Writer create(Path path, int firstId) throws IOException {
+            Files.deleteIfExists(path);
+            return new Writer(path, new BlockIndex(firstId, 0), null);
+        }
+
+        /**
+         * Reopen a flushed store to add more rows, discarding any rows from watermark on
+         */
+        static Writer reopen(Path path, int watermark) throws IOException {
+            var index = BlockIndex.read(indexPath(path));
+            var dictionaryBytes = readDictionaries(path);
+            var writer = new Writer(path, index, Arrays.stream(dictionaryBytes)
+                                                       .map(d -> d.length == 0 ? null : new ZstdDictCompress(d, LEVEL))
+                                                       .toArray(ZstdDictCompress[]::new));
+
+            index.size = Math.min(index.size, watermark - index.firstId);
+            index.blocks = (index.size + BLOCK_ROWS - 1) / BLOCK_ROWS;
+            int partial = index.size % BLOCK_ROWS;
+            if (partial > 0) {
+                // the last block will be rewritten, so read back the rows it already has
+                int block = index.blocks - 1;
+                var rows = new RowData[BLOCK_ROWS];
+                var columns = new String[N_COLUMNS][];
+                for (var column : Column.values()) {
+                    int i = block * N_COLUMNS + column.ordinal();
+                    var compressed = ByteBuffer.allocate(index.compressedLengths[i]);
+                    while (compressed.hasRemaining()) {
+                        if (writer.data.read(compressed, index.offsets[i] + compressed.position()) < 0) {
+                            throw new IOException("Truncated content file " + path);
+                        }
+                    }
+                    ZstdDictDecompress dictionary = dictionaryBytes[column.ordinal()].length == 0 ? null : new ZstdDictDecompress(dictionaryBytes[column.ordinal()]);
+                    columns[column.ordinal()] = values(decompress(compressed.array(), dictionary, index.rawLengths[i]), partial);
+                }
+                for (int r = 0; r < partial; r++) {
+                    rows[r] = new RowData(columns[0][r], columns[1][r], columns[2][r]);
+                }
+                writer.openBlocks.put(block, rows);
+            }
+            return writer;
+        }
+
+        void put(int id, RowData row) {
+            int block;
+            RowData[] full = null;
+            ZstdDictCompress[] compressors = null;
+            List<RowData> toTrain = null;
+            synchronized (this) {
+                int local = id - index.firstId;
+                block = local / BLOCK_ROWS;
+                var rows = openBlocks.computeIfAbsent(block, b -> new RowData[BLOCK_ROWS]);
+                rows[local % BLOCK_ROWS] = row;
+                index.size++;
+
+                if (dictionaries == null) {
+                    // rows that arrive while the dictionaries are being trained wait in their blocks
+                    if (sample != null) {
+                        sample.add(row);
+                        if (sample.size() >= DICTIONARY_SAMPLE_ROWS) {
+                            toTrain = sample;
+                            sample = null;
+                        }
+                    }
+                } else if (count(rows) == BLOCK_ROWS) {
+                    // nothing else will touch a full block, so it can be compressed without the lock
+                    openBlocks.remove(block);
+                    full = rows;
+                    compressors = dictionaries;
+                }
+            }
+
+            try {
+                if (toTrain != null) {
+                    trainDictionaries(toTrain);
+                }
+                if (full != null) {
+                    writeBlock(block, full, compressors);
+                }
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * @return the number of rows put, including any kept from before a reopen
+         */
+        synchronized int size() {
+            return index.size;
+        }
+
+        /**
+         * Make everything put so far durable.  The rows must be contiguous, i.e. there must be
+         * no puts in flight.
+         */
+        synchronized void flush() throws IOException {
+            if (dictionaries == null) {
+                trainDictionaries(sample == null ? List.of() : sample);
+            }
+            for (var entry : openBlocks.entrySet()) {
+                var rows = entry.getValue();
+                int count = count(rows);
+                for (int r = 0; r < count; r++) {
+                    if (rows[r] == null) {
+                        throw new IllegalStateException("Missing row " + (index.firstId + entry.getKey() * BLOCK_ROWS + r));
+                    }
+                }
+                writeBlock(entry.getKey(), rows, dictionaries);
+            }
+            openBlocks.values().removeIf(rows -> count(rows) == BLOCK_ROWS);
+            data.force(false);
+            index.write(indexPath(path));
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            flush();
+            data.close();
+        }
+
+        /**
+         * Train the dictionaries from the sample and save them, then write the blocks that filled up
+         * while waiting for them.  Called without the lock (except from flush), by one thread at a time.
+         */
+        private void trainDictionaries(List<RowData> sample) throws IOException {
+            var trained = new byte[N_COLUMNS][];
+            for (var column : Column.values()) {
+                var samples = sample.stream().map(row -> column.of(row).getBytes(StandardCharsets.UTF_8)).toList();
+                if (samples.isEmpty()) {
+                    trained[column.ordinal()] = new byte[0];
+                    continue;
+                }
+                var trainer = new ZstdDictTrainer(samples.stream().mapToInt(s -> s.length).sum(), DICTIONARY_SIZE);
+                samples.forEach(trainer::addSample);
+                try {
+                    trained[column.ordinal()] = trainer.trainSamples();
+                }
+                catch (ZstdException e) {
+                    // too few rows to train from, which only happens for small appends
+                    trained[column.ordinal()] = new byte[0];
+                }
+            }
+            writeAtomically(dictionaryPath(path), out -> {
+                for (var dictionary : trained) {
+                    out.writeInt(dictionary.length);
+                    out.write(dictionary);
+                }
+            });
+            var compressors = Arrays.stream(trained)
+                                    .map(d -> d.length == 0 ? null : new ZstdDictCompress(d, LEVEL))
+                                    .toArray(ZstdDictCompress[]::new);
+
+            // write out the blocks that filled up while we were sampling and training
+            List<Map.Entry<Integer, RowData[]>> full;
+            synchronized (this) {
+                dictionaries = compressors;
+                full = openBlocks.entrySet().stream().filter(e -> count(e.getValue()) == BLOCK_ROWS).toList();
+                full.forEach(e -> openBlocks.remove(e.getKey()));
+            }
+            for (var entry : full) {
+                writeBlock(entry.getKey(), entry.getValue(), compressors);
+            }
+        }
+
+        /**
+         * Compress the block's columns and append them to the file, reserving their place in it
+         * atomically; only recording them in the index takes the lock
+         */
+        private void writeBlock(int block, RowData[] rows, ZstdDictCompress[] compressors) throws IOException {
+            var raw = new byte[N_COLUMNS][];
+            var compressed = new byte[N_COLUMNS][];
+            int length = 0;
+            for (var column : Column.values()) {
+                int c = column.ordinal();
+                raw[c] = serialize(rows, column);
+                compressed[c] = compressors[c] == null ? Zstd.compress(raw[c], LEVEL) : Zstd.compress(raw[c], compressors[c]);
+                length += compressed[c].length;
+            }
+
+            long start = end.getAndAdd(length);
+            var buffer = ByteBuffer.allocate(length);
+            for (var bytes : compressed) {
+                buffer.put(bytes);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                data.write(buffer, start + buffer.position());
+            }
+
+            synchronized (this) {
+                long offset = start;
+                for (var column : Column.values()) {
+                    int c = column.ordinal();
+                    index.set(block, column, offset, compressed[c].length, raw[c].length);
+                    offset += compressed[c].length;
+                }
+            }
+        }
+
+        private static byte[] serialize(RowData[] rows, Column column) {
+            var out = new ByteArrayOutputStream();
+            for (var row : rows) {
+                if (row == null) {
+                    break;
+                }
+                var bytes = column.of(row).getBytes(StandardCharsets.UTF_8);
+                int length = bytes.length;
+                while ((length & ~0x7f) != 0) {
+                    out.write((length & 0x7f) | 0x80);
+                    length >>>= 7;
+                }
+                out.write(length);
+                out.writeBytes(bytes);
+            }
+            return out.toByteArray();
+        }
+
+        private static int count(RowData[] rows) {
+            int count = 0;
+            for (var row : rows) {
+                if (row != null) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+}
@@ -5,26 +5,118 @@ import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 import java.util.Properties;
 
 public class Config {
+    private final Properties props;
     private final Path datasetPath;
+    // where the shared codebooks (and, if partitioned, the partitions' directories) live
+    private final Path rootPath;
+    // the index directory proper: rootPath, or one partition's directory under it
     private final Path indexPath;
+    private final int partition;
     private final int divisor;
     private final String cohereKey;
+    private final int ingestReaderThreads;
+    private final int ingestEncoderThreads;
+    private final int ingestWriterThreads;
+    private final int ingestQueueCapacity;
+    private final int ingestBatchThreads;
+    private final int arrowMemoryLimitMB;
+    private final int checkpointShards;
+    private final int trainingSampleSize;
+    private final int serverThreads;
+    private final boolean mmap;
+    private final int prefetchNodes;
+    private final boolean mapPQCodes;
+    private final int warmupQueries;
+    private final boolean stubEmbeddings;
+    private final int stubEmbeddingLatencyMillis;
+    private final int embeddingCoalesceMillis;
+    private final boolean virtualThreads;
+    private final int searchThreads;
+    private final int embeddingCacheSize;
+    private final boolean persistEmbeddingCache;
+    private final int buildMetricsPort;
+    private final int filterScanRows;
+    private final int lexicalBudgetMillis;
+    private final int resultCacheSize;
+    private final int resultCacheTtlSeconds;
+    private final QuantizationProfile quantization;
+    private final int partitions;
+    private final Partitioning.Strategy partitionBy;
+    private final int partitionProbes;
+    private final List<String> partitionServers;
+    private final int partitionTimeoutMillis;
 
     public Config() {
+        this(loadProperties(), -1);
+    }
+
+    private static Properties loadProperties() {
         Properties props = new Properties();
         try (FileInputStream fis = new FileInputStream("config.properties")) {
             props.load(fis);
         } catch (IOException e) {
             throw new UncheckedIOException("Failed to load configuration properties.", e);
         }
+        return props;
+    }
+
+    private Config(Properties props, int partition) {
+        this.props = props;
+        this.partition = partition;
         datasetPath = Path.of(props.getProperty("dataset_location")).resolve("Cohere___wikipedia-2023-11-embed-multilingual-v3/en/0.0.0/37feace541fadccf70579e9f289c3cf8e8b186d7/wikipedia-2023-11-embed-multilingual-v3-train-%s-of-00378.arrow");
-        indexPath = Path.of(props.getProperty("index_location"));
+        rootPath = Path.of(props.getProperty("index_location"));
+        indexPath = partition < 0 ? rootPath : rootPath.resolve("part-" + partition);
         divisor = Integer.parseInt(props.getProperty("divisor"));
         cohereKey = props.getProperty("cohere_api_key");
+        ingestReaderThreads = Integer.parseInt(props.getProperty("ingest_reader_threads", "4"));
+        ingestEncoderThreads = Integer.parseInt(props.getProperty("ingest_encoder_threads", "4"));
+        ingestWriterThreads = Integer.parseInt(props.getProperty("ingest_writer_threads", "2"));
+        ingestQueueCapacity = Integer.parseInt(props.getProperty("ingest_queue_capacity", "10000"));
+        ingestBatchThreads = Integer.parseInt(props.getProperty("ingest_batch_threads", "1"));
+        arrowMemoryLimitMB = Integer.parseInt(props.getProperty("arrow_memory_limit_mb", "4096"));
+        checkpointShards = Integer.parseInt(props.getProperty("checkpoint_shards", "64"));
+        trainingSampleSize = Integer.parseInt(props.getProperty("training_sample_size", "128000"));
+        serverThreads = Integer.parseInt(props.getProperty("server_threads", "64"));
+        mmap = props.getProperty("reader", "mmap").equals("mmap");
+        prefetchNodes = Integer.parseInt(props.getProperty("prefetch_nodes", "0"));
+        mapPQCodes = props.getProperty("pq_codes", "heap").equals("mmap");
+        warmupQueries = Integer.parseInt(props.getProperty("warmup_queries", "0"));
+        stubEmbeddings = props.getProperty("embedding_provider", "cohere").equals("stub");
+        stubEmbeddingLatencyMillis = Integer.parseInt(props.getProperty("embedding_stub_latency_ms", "0"));
+        embeddingCoalesceMillis = Integer.parseInt(props.getProperty("embedding_coalesce_ms", "0"));
+        virtualThreads = Boolean.parseBoolean(props.getProperty("server_virtual_threads", "false"));
+        searchThreads = Integer.parseInt(props.getProperty("search_threads", "0"));
+        embeddingCacheSize = Integer.parseInt(props.getProperty("embedding_cache_size", "10000"));
+        persistEmbeddingCache = Boolean.parseBoolean(props.getProperty("embedding_cache_persist", "false"));
+        buildMetricsPort = Integer.parseInt(props.getProperty("build_metrics_port", "0"));
+        filterScanRows = Integer.parseInt(props.getProperty("filter_scan_rows", "50000"));
+        lexicalBudgetMillis = Integer.parseInt(props.getProperty("lexical_budget_ms", "50"));
+        resultCacheSize = Integer.parseInt(props.getProperty("result_cache_size", "1000"));
+        resultCacheTtlSeconds = Integer.parseInt(props.getProperty("result_cache_ttl_seconds", "300"));
+        quantization = QuantizationProfile.parse(props);
+        partitions = Integer.parseInt(props.getProperty("partitions", "0"));
+        partitionBy = Partitioning.Strategy.valueOf(props.getProperty("partition_by", "shard").toUpperCase(Locale.ROOT));
+        partitionProbes = Integer.parseInt(props.getProperty("partition_probes", "0"));
+        partitionServers = Arrays.stream(props.getProperty("partition_servers", "").split(",", -1)).map(String::trim).toList();
+        partitionTimeoutMillis = Integer.parseInt(props.getProperty("partition_timeout_ms", "2000"));
+    }
+
+    /**
+     * @return the configuration for one partition of a partitioned index, whose index directory is
+     * part-N under index_location; the codebooks are still shared, in index_location itself
+     */
+    public Config forPartition(int partition) {
+        if (partition < 0 || partition >= partitions) {
+            throw new IllegalArgumentException(String.format("No partition %d of %d", partition, partitions));
+        }
+        return new Config(props, partition);
     }
 
     public void validateDatasetPath() {
@@ -42,7 +134,7 @@ public class Config {
     public void maybeCreateIndexDirectory() {
         if (!Files.exists(indexPath)) {
             try {
-                Files.createDirectory(indexPath);
+                Files.createDirectories(indexPath);
             }
             catch (IOException e) {
                 throw new UncheckedIOException(e);
@@ -50,12 +142,56 @@ public class Config {
         }
     }
 
-    public Path annPath() {
-        return indexPath.resolve("coherepedia.ann");
+    /**
+     * The index is built in generations: the initial build lives directly in the index directory,
+     * and each append writes a new generation to its own subdirectory.  CURRENT names the
+     * generation that should be served; without it, that is the initial build.
+     */
+    public int currentGeneration() {
+        var current = indexPath.resolve("CURRENT");
+        if (!Files.exists(current)) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(Files.readString(current).trim());
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void publishGeneration(int generation) throws IOException {
+        var tmp = indexPath.resolve("CURRENT.tmp");
+        Files.writeString(tmp, Integer.toString(generation));
+        Files.move(tmp, indexPath.resolve("CURRENT"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public Path generationDirectory(int generation) {
+        return generation == 0 ? indexPath : indexPath.resolve("gen-" + generation);
+    }
+
+    public Path annPath(int generation) {
+        return generationDirectory(generation).resolve("coherepedia.ann");
+    }
+
+    // holds only the rows added by this generation; see ColumnarContent for the files alongside it
+    public Path contentPath(int generation) {
+        return generationDirectory(generation).resolve("coherepedia.content");
+    }
+
+    // bitsets of the rows with each metadata value, for filtered search; see FilterIndex
+    public Path filtersPath(int generation) {
+        return generationDirectory(generation).resolve("coherepedia.filters");
     }
 
-    public Path mapPath() {
-        return indexPath.resolve("coherepedia.map");
+    // BM25 postings for hybrid search, with the files alongside it; see LexicalIndex
+    public Path lexicalPath(int generation) {
+        return generationDirectory(generation).resolve("coherepedia.lex");
+    }
+
+    // the Chronicle Map content store of indexes built before ColumnarContent; only ContentStoreReport reads it
+    public Path mapPath(int generation) {
+        return generationDirectory(generation).resolve("coherepedia.map");
     }
 
     public int getDivisor() {
@@ -64,15 +200,195 @@ public class Config {
 
     // cached for construction but not used for search
     public Path pqPath() {
-        return indexPath.resolve("coherepedia.pq");
+        return rootPath.resolve("coherepedia.pq");
+    }
+
+    public Path pqVectorsPath(int generation) {
+        return generationDirectory(generation).resolve("coherepedia.pqv");
     }
 
-    public Path pqVectorsPath() {
-        return indexPath.resolve("coherepedia.pqv");
+    // the in-memory graph, kept so that the next generation can append to it; not used for search
+    public Path graphPath(int generation) {
+        return generationDirectory(generation).resolve("coherepedia.graph");
     }
 
     public Path lvqPath() {
-        return indexPath.resolve("coherepedia.lvq");
+        return rootPath.resolve("coherepedia.lvq");
+    }
+
+    /**
+     * The quantization profile the codebooks were trained for; see QuantizationProfile
+     */
+    public Path profilePath() {
+        return rootPath.resolve("coherepedia.profile");
+    }
+
+    public Path bqVectorsPath(int generation) {
+        return generationDirectory(generation).resolve("coherepedia.bqv");
+    }
+
+    // the centroid of each partition, when partitioning by centroid; see Partitioning
+    public Path centroidsPath() {
+        return rootPath.resolve("coherepedia.centroids");
+    }
+
+    // only present while a build is in progress (or was interrupted)
+    public Path checkpointPath() {
+        return indexPath.resolve("coherepedia.ckpt");
+    }
+
+    public int getIngestReaderThreads() {
+        return ingestReaderThreads;
+    }
+
+    public int getIngestEncoderThreads() {
+        return ingestEncoderThreads;
+    }
+
+    public int getIngestWriterThreads() {
+        return ingestWriterThreads;
+    }
+
+    public int getIngestQueueCapacity() {
+        return ingestQueueCapacity;
+    }
+
+    public int getIngestBatchThreads() {
+        return ingestBatchThreads;
+    }
+
+    public int getArrowMemoryLimitMB() {
+        return arrowMemoryLimitMB;
+    }
+
+    public int getCheckpointShards() {
+        return checkpointShards;
+    }
+
+    public int getTrainingSampleSize() {
+        return trainingSampleSize;
+    }
+
+    public int getServerThreads() {
+        return serverThreads;
+    }
+
+    public boolean useMmap() {
+        return mmap;
+    }
+
+    public int getPrefetchNodes() {
+        return prefetchNodes;
+    }
+
+    public boolean mapPQCodes() {
+        return mapPQCodes;
+    }
+
+    public int getWarmupQueries() {
+        return warmupQueries;
+    }
+
+    public boolean useStubEmbeddings() {
+        return stubEmbeddings;
+    }
+
+    public int getStubEmbeddingLatencyMillis() {
+        return stubEmbeddingLatencyMillis;
+    }
+
+    public int getEmbeddingCoalesceMillis() {
+        return embeddingCoalesceMillis;
+    }
+
+    public boolean useVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public int getSearchThreads() {
+        return searchThreads;
+    }
+
+    public int getEmbeddingCacheSize() {
+        return embeddingCacheSize;
+    }
+
+    public boolean persistEmbeddingCache() {
+        return persistEmbeddingCache;
+    }
+
+    public int getBuildMetricsPort() {
+        return buildMetricsPort;
+    }
+
+    public int getFilterScanRows() {
+        return filterScanRows;
+    }
+
+    public int getLexicalBudgetMillis() {
+        return lexicalBudgetMillis;
+    }
+
+    public int getResultCacheSize() {
+        return resultCacheSize;
+    }
+
+    public int getResultCacheTtlSeconds() {
+        return resultCacheTtlSeconds;
+    }
+
+    /**
+     * @return the number of partitions the index is built and served as; 0 if it is a single index
+     */
+    public int getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * @return the profile to build a new index with; an existing index is served (and appended to)
+     * with the profile it was built with, from profilePath()
+     */
+    public QuantizationProfile getQuantizationProfile() {
+        return quantization;
+    }
+
+    public Partitioning.Strategy getPartitionBy() {
+        return partitionBy;
+    }
+
+    public int getPartitionProbes() {
+        return partitionProbes;
+    }
+
+    public int getPartitionTimeoutMillis() {
+        return partitionTimeoutMillis;
+    }
+
+    /**
+     * @return the host:port of the PartitionServer serving the given partition, or null if it
+     * should be searched in-process
+     */
+    public String getPartitionServer(int partition) {
+        if (partition >= partitionServers.size() || partitionServers.get(partition).isEmpty()) {
+            return null;
+        }
+        return partitionServers.get(partition);
+    }
+
+    /**
+     * @return this configuration's partition, or -1 if it is not for a partition
+     */
+    public int getPartition() {
+        return partition;
+    }
+
+    public Path embeddingCachePath() {
+        return rootPath.resolve("coherepedia.embcache");
+    }
+
+    // exact nearest neighbors of held-out queries, computed by RecallBenchmark
+    public Path groundTruthPath() {
+        return indexPath.resolve("coherepedia.gt");
     }
 
     public String getCohereKey() {
@@ -80,16 +396,26 @@ public class Config {
     }
 
     public void validateIndexExists() {
-        for (var path : List.of(annPath(), mapPath(), lvqPath(), pqVectorsPath())) {
+        if (partitions > 0 && partition < 0) {
+            // only the partitions that are searched in-process need to be here
+            for (int p = 0; p < partitions; p++) {
+                if (getPartitionServer(p) == null) {
+                    forPartition(p).validateIndexExists();
+                }
+            }
+            return;
+        }
+        int generation = currentGeneration();
+        for (var path : List.of(annPath(generation), contentPath(generation), pqPath(), pqVectorsPath(generation))) {
             if (!Files.exists(path)) {
-                System.out.format("Missing index component %s%nRun buildindex first", indexPath);
+                System.out.format("Missing index component %s%nRun buildindex first", path);
                 System.exit(1);
             }
         }
     }
 
     public void validateCohereKey() {
-        if (cohereKey.isEmpty()) {
+        if (!stubEmbeddings && cohereKey.isEmpty()) {
             System.out.println("Please set the cohere_api_key variable in config.properties (go to cohere.com for a free trial key)");
             System.exit(1);
         }
@@ -0,0 +1,62 @@
+package io.github.jbellis;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Row content for one index generation.  Each generation's store holds only the rows that
+ * generation added, so an append never has to copy the existing content; lookups are routed to
+ * the right store by id, since every generation's ids follow on from the previous one's.
+ */
+class ContentStore implements AutoCloseable {
+    private final List<ColumnarContent> stores;
+
+    private ContentStore(List<ColumnarContent> stores) {
+        this.stores = stores;
+    }
+
+    static ContentStore open(Config config, int generation) throws IOException {
+        var stores = new ArrayList<ColumnarContent>(generation + 1);
+        try {
+            for (int g = 0; g <= generation; g++) {
+                stores.add(ColumnarContent.open(config.contentPath(g)));
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            stores.forEach(ColumnarContent::close);
+            throw e;
+        }
+        return new ContentStore(stores);
+    }
+
+    RowData get(int id) {
+        return get(id, ColumnarContent.ALL_COLUMNS);
+    }
+
+    /**
+     * @return only the given columns of the row, leaving the others null
+     */
+    RowData get(int id, Set<ColumnarContent.Column> columns) {
+        for (int g = stores.size() - 1; g > 0; g--) {
+            if (id >= stores.get(g).firstId()) {
+                return stores.get(g).get(id, columns);
+            }
+        }
+        return stores.get(0).get(id, columns);
+    }
+
+    /**
+     * Call the consumer with every row of every generation and its id, in id order
+     */
+    void forEach(ObjIntConsumer<RowData> consumer) {
+        stores.forEach(store -> store.forEach(consumer));
+    }
+
+    @Override
+    public void close() {
+        stores.forEach(ColumnarContent::close);
+    }
+}
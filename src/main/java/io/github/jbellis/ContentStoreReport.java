@@ -0,0 +1,96 @@
+package io.github.jbellis;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+import net.openhft.chronicle.map.ChronicleMap;
+import net.openhft.chronicle.map.ChronicleMapBuilder;
+
+import static io.github.jbellis.BuildIndex.log;
+
+/**
+ * Compares the columnar content store with the Chronicle Map it replaced, by size on disk and by
+ * latency of random lookups, both of whole rows and of titles alone.  An index built before the
+ * columnar store only has coherepedia.map, so each generation's map is first converted.
+ * <p>
+ * Chronicle Map needs the extra JVM flags in pom.xml's "contentreport" execution.
+ * Usage: ContentStoreReport [lookups]
+ */
+public class ContentStoreReport {
+    private static final Config config = new Config();
+
+    public static void main(String[] args) throws IOException {
+        int lookups = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+
+        for (int g = 0; g <= config.currentGeneration(); g++) {
+            var mapPath = config.mapPath(g);
+            var contentPath = config.contentPath(g);
+            if (!Files.exists(mapPath)) {
+                log("No Chronicle map at %s to compare with", mapPath);
+                continue;
+            }
+
+            try (var map = openMap(mapPath)) {
+                if (!Files.exists(contentPath)) {
+                    convert(map, contentPath);
+                }
+                try (var columnar = ColumnarContent.open(contentPath)) {
+                    long columnarBytes = Files.size(contentPath)
+                                         + Files.size(sibling(contentPath, ".idx"))
+                                         + Files.size(sibling(contentPath, ".dict"));
+                    // Chronicle preallocates a sparse file, so this overstates what it really uses
+                    log("Generation %d: %,d rows; Chronicle map %,d MB, columnar %,d MB",
+                        g, columnar.size(), Files.size(mapPath) / (1024 * 1024), columnarBytes / (1024 * 1024));
+
+                    var ids = new Random(42).ints(lookups, columnar.firstId(), columnar.firstId() + columnar.size()).toArray();
+                    time("Chronicle map, whole row", ids, map::get);
+                    time("columnar, whole row", ids, id -> columnar.get(id, ColumnarContent.ALL_COLUMNS));
+                    time("columnar, title only", ids, id -> columnar.get(id, EnumSet.of(ColumnarContent.Column.TITLE)));
+                }
+            }
+        }
+    }
+
+    private static void convert(ChronicleMap<Integer, RowData> map, Path contentPath) throws IOException {
+        int firstId = map.keySet().stream().mapToInt(Integer::intValue).min().orElse(0);
+        log("Converting %,d rows to %s", map.size(), contentPath);
+        try (var writer = ColumnarContent.Writer.create(contentPath, firstId)) {
+            for (int id = firstId; id < firstId + map.size(); id++) {
+                writer.put(id, map.get(id));
+            }
+        }
+    }
+
+    private static void time(String label, int[] ids, IntFunction<RowData> lookup) {
+        // once to warm up, and once to measure
+        var latencies = new long[ids.length];
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < ids.length; i++) {
+                long start = System.nanoTime();
+                if (lookup.apply(ids[i]) == null) {
+                    throw new IllegalStateException("Missing row " + ids[i]);
+                }
+                latencies[i] = System.nanoTime() - start;
+            }
+        }
+        long total = Arrays.stream(latencies).sum();
+        Arrays.sort(latencies);
+        log("  %-26s mean %,7.1f us, p99 %,7.1f us", label,
+            (double) total / ids.length / 1e3, latencies[(int) (0.99 * (ids.length - 1))] / 1e3);
+    }
+
+    private static Path sibling(Path path, String suffix) {
+        return path.resolveSibling(path.getFileName() + suffix);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ChronicleMap<Integer, RowData> openMap(Path path) throws IOException {
+        return ChronicleMapBuilder.of((Class<Integer>) (Class) Integer.class, (Class<RowData>) (Class) RowData.class)
+                                  .createPersistedTo(path.toFile());
+    }
+}
@@ -0,0 +1,75 @@
+package io.github.jbellis;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.complex.ListVector;
+import org.apache.arrow.vector.ipc.ArrowStreamReader;
+
+import static io.github.jbellis.BuildIndex.log;
+
+/**
+ * Times the boxed getObject() decoding path against EmbeddingDecoder on a single shard.
+ * Only the embedding column is decoded, so the numbers isolate the cost of that step.
+ * Usage: EmbeddingDecodeBenchmark [shard index] [rounds]
+ */
+public class EmbeddingDecodeBenchmark {
+    private static final Config config = new Config();
+
+    public static void main(String[] args) throws IOException {
+        config.validateDatasetPath();
+        int shard = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        var filename = config.filenameForShard(shard);
+
+        verify(filename);
+        for (int round = 0; round < rounds; round++) {
+            time("boxed", filename, false);
+            time("direct", filename, true);
+        }
+    }
+
+    private static void verify(String filename) throws IOException {
+        try (var allocator = new RootAllocator();
+             var fileInputStream = new FileInputStream(filename);
+             var reader = new ArrowStreamReader(fileInputStream, allocator))
+        {
+            var emb = (ListVector) reader.getVectorSchemaRoot().getVector("emb");
+            var decoder = new EmbeddingDecoder(emb);
+            reader.loadNextBatch();
+            decoder.reset();
+            for (int i = 0; i < reader.getVectorSchemaRoot().getRowCount(); i++) {
+                if (!Arrays.equals(EmbeddingDecoder.decodeBoxed(emb, i), decoder.decode(i))) {
+                    throw new IllegalStateException("Decoders disagree at row " + i);
+                }
+            }
+        }
+    }
+
+    private static void time(String label, String filename, boolean direct) throws IOException {
+        long start = System.nanoTime();
+        long rows = 0;
+        double checksum = 0; // keeps the JIT from discarding the decoded values
+        try (var allocator = new RootAllocator();
+             var fileInputStream = new FileInputStream(filename);
+             var reader = new ArrowStreamReader(fileInputStream, allocator))
+        {
+            var root = reader.getVectorSchemaRoot();
+            var emb = (ListVector) root.getVector("emb");
+            var decoder = new EmbeddingDecoder(emb);
+            while (reader.loadNextBatch()) {
+                decoder.reset();
+                for (int i = 0; i < root.getRowCount(); i++) {
+                    float[] embedding = direct ? decoder.decode(i) : EmbeddingDecoder.decodeBoxed(emb, i);
+                    checksum += embedding[0];
+                    rows++;
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        log("%s: %,d rows in %,d ms (%,.0f rows/s, checksum %.3f)",
+            label, rows, elapsed / 1_000_000, rows * 1e9 / elapsed, checksum);
+    }
+}
@@ -0,0 +1,111 @@
+package io.github.jbellis;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+
+import org.apache.arrow.memory.ArrowBuf;
+import org.apache.arrow.vector.Float4Vector;
+import org.apache.arrow.vector.Float8Vector;
+import org.apache.arrow.vector.complex.BaseRepeatedValueVector;
+import org.apache.arrow.vector.complex.ListVector;
+import org.apache.arrow.vector.util.JsonStringArrayList;
+
+/**
+ * Reads embeddings straight out of the child data buffer of an Arrow list column,
+ * instead of going through getObject(), which boxes every element into a JsonStringArrayList.
+ * <p>
+ * A decoder is bound to a single ListVector and must be reset() after every loadNextBatch,
+ * since the vector's buffers are replaced with each batch.  Not threadsafe.
+ */
+class EmbeddingDecoder {
+    private final ListVector vector;
+
+    // views over the child data buffer of the current batch; only one of these is non-null
+    private FloatBuffer floats;
+    private DoubleBuffer doubles;
+    // scratch space for narrowing float64 embeddings, reused across the rows of a batch
+    private double[] scratch = new double[0];
+
+    EmbeddingDecoder(ListVector vector) {
+        this.vector = vector;
+    }
+
+    /**
+     * Rebind to the buffers of the batch currently loaded into the vector.
+     */
+    void reset() {
+        var child = vector.getDataVector();
+        floats = null;
+        doubles = null;
+        switch (child.getMinorType()) {
+            case FLOAT4 -> floats = view(child.getDataBuffer(), child.getValueCount(), Float4Vector.TYPE_WIDTH).asFloatBuffer();
+            case FLOAT8 -> doubles = view(child.getDataBuffer(), child.getValueCount(), Float8Vector.TYPE_WIDTH).asDoubleBuffer();
+            default -> throw new IllegalArgumentException("Unsupported embedding element type " + child.getMinorType());
+        }
+    }
+
+    private static ByteBuffer view(ArrowBuf buffer, int valueCount, int width) {
+        // Arrow IPC data is always little-endian, regardless of the platform
+        return buffer.nioBuffer(0, Math.toIntExact((long) valueCount * width)).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * @return a newly allocated array holding the embedding for the given row of the current batch.
+     * (Callers wrap the result in a VectorFloat and may hold onto it, so it is not reused.)
+     */
+    float[] decode(int row) {
+        var embedding = new float[length(row)];
+        decodeInto(row, embedding);
+        return embedding;
+    }
+
+    /**
+     * Copy the embedding for the given row of the current batch into `dest`,
+     * which must be exactly as long as the embedding.
+     */
+    void decodeInto(int row, float[] dest) {
+        int start = start(row);
+        int length = length(row);
+        if (dest.length != length) {
+            throw new IllegalArgumentException(String.format("Embedding at row %d has dimension %d, not %d", row, length, dest.length));
+        }
+
+        if (floats != null) {
+            floats.get(start, dest, 0, length);
+            return;
+        }
+        if (scratch.length < length) {
+            scratch = new double[length];
+        }
+        doubles.get(start, scratch, 0, length);
+        for (int i = 0; i < length; i++) {
+            dest[i] = (float) scratch[i];
+        }
+    }
+
+    private int start(int row) {
+        if (vector.isNull(row)) {
+            throw new IllegalStateException("Missing embedding at row " + row);
+        }
+        return vector.getOffsetBuffer().getInt((long) row * BaseRepeatedValueVector.OFFSET_WIDTH);
+    }
+
+    private int length(int row) {
+        return vector.getOffsetBuffer().getInt((long) (row + 1) * BaseRepeatedValueVector.OFFSET_WIDTH) - start(row);
+    }
+
+    /**
+     * The original decoding path, through boxed values and their String representations.
+     * Kept only so EmbeddingDecodeBenchmark can compare against it.
+     */
+    static float[] decodeBoxed(ListVector vector, int row) {
+        var jsonList = (JsonStringArrayList<?>) vector.getObject(row);
+        float[] floatArray = new float[jsonList.size()];
+        for (int i = 0; i < jsonList.size(); i++) {
+            floatArray[i] = Float.parseFloat(jsonList.get(i).toString());
+        }
+        return floatArray;
+    }
+}
@@ -0,0 +1,42 @@
+package io.github.jbellis;
+
+import java.util.List;
+
+import io.github.jbellis.jvector.vector.types.VectorFloat;
+
+/**
+ * Turns query text into a vector in the same space as the indexed embeddings.
+ */
+interface EmbeddingProvider {
+    /**
+     * Threadsafe.
+     */
+    VectorFloat<?> embed(String text);
+
+    /**
+     * Threadsafe.  Providers backed by a remote service should override this to embed the
+     * texts in as few calls as possible.
+     * @return the embeddings of the given texts, in the same order
+     */
+    default List<VectorFloat<?>> embedAll(List<String> texts) {
+        return texts.stream().<VectorFloat<?>>map(this::embed).toList();
+    }
+
+    /**
+     * @return the provider selected by embedding_provider, coalescing concurrent calls if
+     * embedding_coalesce_ms is positive, behind a cache if embedding_cache_size is positive
+     */
+    static EmbeddingProvider fromConfig(Config config) {
+        EmbeddingProvider provider = config.useStubEmbeddings()
+                                     ? new StubEmbeddingProvider(BuildIndex.DIMENSION, config.getStubEmbeddingLatencyMillis())
+                                     : new CohereEmbeddingProvider(config.getCohereKey());
+        if (config.getEmbeddingCoalesceMillis() > 0) {
+            provider = new CoalescingEmbeddingProvider(provider, config.getEmbeddingCoalesceMillis());
+        }
+        if (config.getEmbeddingCacheSize() > 0) {
+            var persistPath = config.persistEmbeddingCache() ? config.embeddingCachePath() : null;
+            provider = new CachingEmbeddingProvider(provider, config.getEmbeddingCacheSize(), persistPath);
+        }
+        return provider;
+    }
+}
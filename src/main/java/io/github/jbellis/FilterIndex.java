@@ -0,0 +1,451 @@
+package io.github.jbellis;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.stream.Collectors;
+
+import io.github.jbellis.jvector.util.Bits;
+
+/**
+ * Precomputed row sets for restricting searches by metadata.  For each indexed attribute (the
+ * domain of a row's url, the first letter of its title) and each value it takes, a bitset of the
+ * rows with that value, one bit per id packed into longs.  A filter names one or more values for
+ * each of one or more attributes; a row matches if it has one of the named values of every named
+ * attribute, which is an OR of bitsets within an attribute and an AND across them.
+ * <p>
+ * Like the content, each generation has its own file (coherepedia.filters) covering only the rows
+ * it added.  The bitsets are memory-mapped, so combining them for a query costs nothing up front:
+ * a Match just reads the words it is asked about.
+ */
+class FilterIndex implements AutoCloseable {
+    enum Attribute {
+        DOMAIN(ColumnarContent.Column.URL),
+        TITLE_INITIAL(ColumnarContent.Column.TITLE);
+
+        final ColumnarContent.Column column;
+
+        Attribute(ColumnarContent.Column column) {
+            this.column = column;
+        }
+
+        /**
+         * @return this attribute's value for the row, or null if it has none
+         */
+        String of(RowData row) {
+            var s = column.of(row);
+            if (s == null || s.isEmpty()) {
+                return null;
+            }
+            return switch (this) {
+                case DOMAIN -> {
+                    try {
+                        var host = URI.create(s).getHost();
+                        yield host == null ? null : normalize(host);
+                    }
+                    catch (IllegalArgumentException e) {
+                        yield null;
+                    }
+                }
+                case TITLE_INITIAL -> {
+                    // one bucket for everything that isn't an ASCII letter or digit, to keep the value count small
+                    char c = Character.toUpperCase(s.charAt(0));
+                    yield (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ? String.valueOf(c) : "#";
+                }
+            };
+        }
+
+        /**
+         * @return the value as it is stored in the index, so that filters need not match case
+         */
+        String normalize(String value) {
+            return switch (this) {
+                case DOMAIN -> value.toLowerCase(Locale.ROOT);
+                case TITLE_INITIAL -> value.toUpperCase(Locale.ROOT);
+            };
+        }
+
+        String key() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+
+        /**
+         * @throws IllegalArgumentException if there is no attribute with the given key
+         */
+        static Attribute forKey(String key) {
+            for (var attribute : values()) {
+                if (attribute.key().equals(key)) {
+                    return attribute;
+                }
+            }
+            throw new IllegalArgumentException("Unknown filter attribute " + key + "; expected domain or title_initial");
+        }
+    }
+
+    // attributes with more distinct values than this keep only the most common ones
+    static final int MAX_VALUES = 1024;
+    private static final int MAGIC = 0xc0ffee15;
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+
+    private final List<Segment> segments;
+
+    private FilterIndex(List<Segment> segments) {
+        this.segments = segments;
+    }
+
+    /**
+     * @return the filters of every generation up to the given one, or null if any of them is
+     * missing (an index built before filtering, until BuildIndex --filters is run on it)
+     */
+    static FilterIndex open(Config config, int generation) throws IOException {
+        var segments = new ArrayList<Segment>(generation + 1);
+        try {
+            for (int g = 0; g <= generation; g++) {
+                var path = config.filtersPath(g);
+                if (!Files.exists(path)) {
+                    segments.forEach(Segment::close);
+                    return null;
+                }
+                segments.add(Segment.open(path));
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            segments.forEach(Segment::close);
+            throw e;
+        }
+        return new FilterIndex(segments);
+    }
+
+    /**
+     * @param param the comma-separated accepted values of the attribute with the given key, or null
+     * @return the filter with the values of every attribute that param gives any for; empty if none
+     */
+    static Map<Attribute, Set<String>> parse(Function<String, String> param) {
+        var filter = new EnumMap<Attribute, Set<String>>(Attribute.class);
+        for (var attribute : Attribute.values()) {
+            var values = param.apply(attribute.key());
+            if (values == null) {
+                continue;
+            }
+            var set = Arrays.stream(values.split(","))
+                            .map(String::trim)
+                            .filter(v -> !v.isEmpty())
+                            .collect(Collectors.toSet());
+            if (!set.isEmpty()) {
+                filter.put(attribute, set);
+            }
+        }
+        return filter;
+    }
+
+    /**
+     * @param filter the accepted values of each attribute, which must not be empty
+     * @return the rows matching the filter
+     */
+    Match match(Map<Attribute, Set<String>> filter) {
+        if (filter.isEmpty()) {
+            throw new IllegalArgumentException("Empty filter");
+        }
+        var parts = new ArrayList<Match.Part>(segments.size());
+        long estimate = 0;
+        for (var segment : segments) {
+            var offsets = new long[filter.size()][];
+            long segmentEstimate = segment.size;
+            int i = 0;
+            for (var entry : filter.entrySet()) {
+                var values = segment.bitsets.get(entry.getKey());
+                var matching = entry.getValue().stream()
+                                    .map(v -> values.get(entry.getKey().normalize(v)))
+                                    .filter(b -> b != null)
+                                    .toList();
+                offsets[i++] = matching.stream().mapToLong(Bitset::offset).toArray();
+                segmentEstimate = Math.min(segmentEstimate, matching.stream().mapToLong(Bitset::cardinality).sum());
+            }
+            if (segmentEstimate > 0) {
+                parts.add(new Match.Part(segment, offsets));
+                estimate += segmentEstimate;
+            }
+        }
+        return new Match(parts, estimate);
+    }
+
+    /**
+     * The rows matching a filter, across all generations
+     */
+    static final class Match implements Bits {
+        // offsets[attribute][value] of the bitsets to OR within each attribute and AND across them
+        private record Part(Segment segment, long[][] offsets) {}
+
+        private final List<Part> parts;
+        private final long estimatedSize;
+
+        private Match(List<Part> parts, long estimatedSize) {
+            this.parts = parts;
+            this.estimatedSize = estimatedSize;
+        }
+
+        /**
+         * @return an upper bound on the number of matching rows: the least common attribute's count,
+         * which is exact for a filter on a single attribute
+         */
+        long estimatedSize() {
+            return estimatedSize;
+        }
+
+        @Override
+        public boolean get(int id) {
+            for (var part : parts) {
+                int local = id - part.segment().firstId;
+                if (local >= 0 && local < part.segment().size) {
+                    return bit(part.segment().word(part.offsets(), local >>> 6), local);
+                }
+            }
+            return false;
+        }
+
+        private static boolean bit(long word, int local) {
+            return (word & (1L << local)) != 0;
+        }
+
+        /**
+         * Call the consumer with the id of every matching row, in order
+         */
+        void forEach(IntConsumer consumer) {
+            for (var part : parts) {
+                var segment = part.segment();
+                for (int w = 0; w < segment.words; w++) {
+                    long word = segment.word(part.offsets(), w);
+                    while (word != 0) {
+                        consumer.accept(segment.firstId + w * 64 + Long.numberOfTrailingZeros(word));
+                        word &= word - 1;
+                    }
+                }
+            }
+        }
+    }
+
+    private record Bitset(long offset, int cardinality) {}
+
+    /**
+     * One generation's bitsets.  The file is a header listing every attribute's values with the
+     * cardinality and offset of their bitsets, followed by the bitsets themselves at 8-byte aligned
+     * offsets, each `words` longs covering the generation's `size` rows.
+     */
+    private static final class Segment {
+        final int firstId;
+        final int size;
+        final int words;
+        final Map<Attribute, Map<String, Bitset>> bitsets;
+        private final Arena arena;
+        private final MemorySegment data;
+
+        private Segment(int firstId, int size, Map<Attribute, Map<String, Bitset>> bitsets, Arena arena, MemorySegment data) {
+            this.firstId = firstId;
+            this.size = size;
+            this.words = words(size);
+            this.bitsets = bitsets;
+            this.arena = arena;
+            this.data = data;
+        }
+
+        static Segment open(Path path) throws IOException {
+            int firstId;
+            int size;
+            var bitsets = new EnumMap<Attribute, Map<String, Bitset>>(Attribute.class);
+            try (var in = new DataInputStream(new BufferedInputStream(new FileInputStream(path.toFile())))) {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Not a filter index: " + path);
+                }
+                firstId = in.readInt();
+                size = in.readInt();
+                int attributes = in.readInt();
+                for (int a = 0; a < attributes; a++) {
+                    var attribute = Attribute.forKey(in.readUTF());
+                    int values = in.readInt();
+                    var byValue = new HashMap<String, Bitset>(values * 2);
+                    for (int v = 0; v < values; v++) {
+                        byValue.put(in.readUTF(), new Bitset(in.readLong(), in.readInt()));
+                    }
+                    bitsets.put(attribute, byValue);
+                }
+            }
+            // attributes added since the file was written have no values
+            for (var attribute : Attribute.values()) {
+                bitsets.putIfAbsent(attribute, Map.of());
+            }
+
+            var arena = Arena.ofShared();
+            try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                var data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+                return new Segment(firstId, size, bitsets, arena, data);
+            }
+            catch (IOException | RuntimeException e) {
+                arena.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return word w of the OR within each attribute's bitsets, ANDed across attributes
+         */
+        long word(long[][] offsets, int w) {
+            long result = -1L;
+            for (var attribute : offsets) {
+                long any = 0;
+                for (long offset : attribute) {
+                    any |= data.get(LONG, offset + (long) w * Long.BYTES);
+                }
+                result &= any;
+                if (result == 0) {
+                    break;
+                }
+            }
+            return result;
+        }
+
+        void close() {
+            arena.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        segments.forEach(Segment::close);
+    }
+
+    private static int words(int size) {
+        return (size + 63) >>> 6;
+    }
+
+    /**
+     * Index the attributes of every row in the content store at contentPath, writing the result to path
+     */
+    static void write(Path path, Path contentPath) throws IOException {
+        try (var content = ColumnarContent.open(contentPath)) {
+            var columns = EnumSet.noneOf(ColumnarContent.Column.class);
+            for (var attribute : Attribute.values()) {
+                columns.add(attribute.column);
+            }
+            int words = words(content.size());
+            var bitsets = new EnumMap<Attribute, Map<String, long[]>>(Attribute.class);
+            for (var attribute : Attribute.values()) {
+                bitsets.put(attribute, new HashMap<>());
+            }
+            content.forEach(columns, (row, id) -> {
+                int local = id - content.firstId();
+                for (var attribute : Attribute.values()) {
+                    var value = attribute.of(row);
+                    if (value != null) {
+                        bitsets.get(attribute).computeIfAbsent(value, v -> new long[words])[local >>> 6] |= 1L << local;
+                    }
+                }
+            });
+            write(path, content.firstId(), content.size(), bitsets);
+        }
+    }
+
+    private static void write(Path path, int firstId, int size, Map<Attribute, Map<String, long[]>> bitsets) throws IOException {
+        // most common values first, dropping any beyond MAX_VALUES
+        var values = new EnumMap<Attribute, List<Map.Entry<String, long[]>>>(Attribute.class);
+        var cardinalities = new HashMap<long[], Integer>();
+        bitsets.forEach((attribute, byValue) -> {
+            byValue.values().forEach(b -> cardinalities.put(b, cardinality(b)));
+            var sorted = byValue.entrySet().stream()
+                                .sorted(Comparator.comparing((Map.Entry<String, long[]> e) -> cardinalities.get(e.getValue())).reversed())
+                                .limit(MAX_VALUES)
+                                .toList();
+            if (sorted.size() < byValue.size()) {
+                BuildIndex.log("Keeping only the %d most common of %,d values of %s", MAX_VALUES, byValue.size(), attribute.key());
+            }
+            values.put(attribute, sorted);
+        });
+
+        // the header's length doesn't depend on the offsets in it, so write it once to find where the bitsets start
+        var offsets = new LinkedHashMap<long[], Long>();
+        int headerLength = header(OutputStream.nullOutputStream(), firstId, size, values, cardinalities, offsets);
+        long offset = (headerLength + 7) & ~7L;
+        for (var entries : values.values()) {
+            for (var e : entries) {
+                offsets.put(e.getValue(), offset);
+                offset += (long) words(size) * Long.BYTES;
+            }
+        }
+
+        var tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (var channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            var header = new ByteArrayOutputStream(headerLength);
+            header(header, firstId, size, values, cardinalities, offsets);
+            channel.write(ByteBuffer.wrap(header.toByteArray()));
+            var buffer = ByteBuffer.allocate(words(size) * Long.BYTES).order(ByteOrder.BIG_ENDIAN);
+            for (var entries : values.values()) {
+                for (var e : entries) {
+                    buffer.clear();
+                    buffer.asLongBuffer().put(e.getValue());
+                    channel.write(buffer, offsets.get(e.getValue()));
+                }
+            }
+            channel.force(false);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    private static int header(OutputStream out, int firstId, int size, Map<Attribute, List<Map.Entry<String, long[]>>> values,
+                              Map<long[], Integer> cardinalities, Map<long[], Long> offsets) throws IOException
+    {
+        var data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(firstId);
+        data.writeInt(size);
+        data.writeInt(values.size());
+        for (var entry : values.entrySet()) {
+            data.writeUTF(entry.getKey().key());
+            data.writeInt(entry.getValue().size());
+            for (var e : entry.getValue()) {
+                data.writeUTF(e.getKey());
+                data.writeLong(offsets.getOrDefault(e.getValue(), 0L));
+                data.writeInt(cardinalities.get(e.getValue()));
+            }
+        }
+        data.flush();
+        return data.size();
+    }
+
+    private static int cardinality(long[] bitset) {
+        int n = 0;
+        for (long word : bitset) {
+            n += Long.bitCount(word);
+        }
+        return n;
+    }
+}
@@ -0,0 +1,146 @@
+package io.github.jbellis;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.IntPredicate;
+import java.util.function.Supplier;
+
+import io.github.jbellis.jvector.graph.SearchResult;
+import io.github.jbellis.jvector.util.Bits;
+import io.github.jbellis.jvector.vector.types.VectorFloat;
+
+/**
+ * Lexical (BM25) and vector retrieval for the same query, fused by reciprocal rank: each row
+ * scores the sum of 1 / (RRF_K + rank) over the result lists it appears in, so a row near the
+ * top of either list ranks well without having to reconcile BM25 scores with similarities.
+ * <p>
+ * The lexical leg starts on the executor (the search pool, in WebSearch) as soon as the request
+ * arrives, and runs while the query is embedded and the graph searched.  It has a latency budget: it stops
+ * scoring at the deadline, and if it still hasn't finished once the vector leg is done and the
+ * budget has passed, the vector results are returned alone.
+ */
+class HybridSearch {
+    static final int RRF_K = 60;
+    // each leg retrieves this many times topK results to fuse
+    private static final int DEPTH_MULTIPLIER = 4;
+
+    private static final Metrics.Timer lexicalTime = Metrics.timer("coherepedia_search_lexical_seconds", "BM25 search time per hybrid query");
+    private static final Metrics.Counter lexicalTimeouts = Metrics.counter("coherepedia_search_lexical_timeouts_total",
+                                                                           "Hybrid queries whose lexical leg ran out of time, partly or entirely");
+
+    private final Executor lexicalExecutor;
+    // null to search the graph on the calling thread
+    private final SearchPool searchPool;
+    private final long budgetNanos;
+
+    HybridSearch(Executor lexicalExecutor, SearchPool searchPool, long budgetMillis) {
+        this.lexicalExecutor = lexicalExecutor;
+        this.searchPool = searchPool;
+        this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+    }
+
+    /**
+     * @param embed computes the query's vector; called on this thread while the lexical leg runs,
+     *              before the graph search (which runs on the search pool, if there is one)
+     * @return the topK rows by fused score, best first
+     * @throws IllegalStateException if the generation has no lexical index, or if the filter is not
+     * empty and it has no filters
+     */
+    List<SearchResult.NodeScore> search(IndexGeneration generation, String text, Supplier<VectorFloat<?>> embed, int topK,
+                                        Map<FilterIndex.Attribute, Set<String>> filter)
+    {
+        if (generation.lexical == null) {
+            throw new IllegalStateException("This index was built without a lexical index; run BuildIndex --lexical to add one");
+        }
+        FilterIndex.Match match = null;
+        if (!filter.isEmpty()) {
+            if (generation.filters == null) {
+                throw new IllegalStateException("This index was built without filters; run BuildIndex --filters to add them");
+            }
+            match = generation.filters.match(filter);
+        }
+        IntPredicate accept = match == null ? id -> true : match::get;
+        int depth = topK * DEPTH_MULTIPLIER;
+
+        long start = System.nanoTime();
+        long deadline = start + budgetNanos;
+        // The lexical leg holds its own reference, since it may outlive this call if it is abandoned.
+        // The task releases it when it is done with the postings, not when the future completes:
+        // abandoning the leg cancels the future, which completes it while the task may still be running.
+        if (!generation.tryAcquire()) {
+            throw new IllegalStateException("Generation " + generation.generation + " is closed");
+        }
+        var lexical = new CompletableFuture<LexicalIndex.Result>();
+        try {
+            lexicalExecutor.execute(() -> {
+                try {
+                    // skip the search if it was abandoned while still queued
+                    if (!lexical.isDone()) {
+                        var result = generation.lexical.search(text, depth, accept, deadline);
+                        lexicalTime.recordSince(start);
+                        lexical.complete(result);
+                    }
+                }
+                catch (Throwable t) {
+                    lexical.completeExceptionally(t);
+                }
+                finally {
+                    generation.release();
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            generation.release();
+            throw e;
+        }
+
+        var q = embed.get();
+        var acceptOrds = match;
+        Supplier<SearchResult> graphSearch = () -> acceptOrds == null ? generation.search(q, depth, Bits.ALL) : generation.search(q, depth, acceptOrds);
+        var vector = searchPool == null ? graphSearch.get() : searchPool.call(graphSearch);
+
+        List<LexicalIndex.Hit> lexicalHits = List.of();
+        try {
+            var result = lexical.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            lexicalHits = result.hits();
+            if (!result.complete()) {
+                lexicalTimeouts.increment();
+            }
+        }
+        catch (TimeoutException e) {
+            // still queued, or stuck before its first deadline check
+            lexical.cancel(false);
+            lexicalTimeouts.increment();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+
+        var fused = new HashMap<Integer, Float>();
+        var nodes = vector.getNodes();
+        for (int rank = 0; rank < nodes.length; rank++) {
+            fused.merge(nodes[rank].node, 1.0f / (RRF_K + rank + 1), Float::sum);
+        }
+        for (int rank = 0; rank < lexicalHits.size(); rank++) {
+            fused.merge(lexicalHits.get(rank).id(), 1.0f / (RRF_K + rank + 1), Float::sum);
+        }
+        var results = new ArrayList<SearchResult.NodeScore>(fused.size());
+        fused.forEach((id, score) -> results.add(new SearchResult.NodeScore(id, score)));
+        results.sort(Comparator.comparingDouble((SearchResult.NodeScore ns) -> ns.score).reversed());
+        return results.subList(0, Math.min(topK, results.size()));
+    }
+}
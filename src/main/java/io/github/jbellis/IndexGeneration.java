@@ -0,0 +1,402 @@
+package io.github.jbellis;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import io.github.jbellis.jvector.disk.SimpleReader;
+import io.github.jbellis.jvector.graph.SearchResult;
+import io.github.jbellis.jvector.graph.disk.OnDiskGraphIndex;
+import io.github.jbellis.jvector.graph.similarity.ScoreFunction;
+import io.github.jbellis.jvector.graph.similarity.SearchScoreProvider;
+import io.github.jbellis.jvector.pq.PQVectors;
+import io.github.jbellis.jvector.pq.ProductQuantization;
+import io.github.jbellis.jvector.util.Bits;
+import io.github.jbellis.jvector.util.FixedBitSet;
+import io.github.jbellis.jvector.vector.VectorSimilarityFunction;
+import io.github.jbellis.jvector.vector.VectorUtil;
+import io.github.jbellis.jvector.vector.types.VectorFloat;
+
+/**
+ * Everything needed to serve searches from one generation of the index.
+ * <p>
+ * Reference counted so that a server can switch to a newer generation while requests are still
+ * running against this one: the opener holds the first reference, each request acquires its own,
+ * and the files are closed when the last one is released.
+ */
+class IndexGeneration implements AutoCloseable {
+    private static final Metrics.Timer graphTime = Metrics.timer("coherepedia_search_graph_seconds", "Graph search time per query, excluding reranking");
+    private static final Metrics.Timer rerankTime = Metrics.timer("coherepedia_search_rerank_seconds", "Reranking time per query");
+    private static final Metrics.Timer filterScanTime = Metrics.timer("coherepedia_search_filter_scan_seconds",
+                                                                      "Time per filtered query answered by scanning the matching rows instead of the graph");
+
+    final int generation;
+    // the profile the index was built with, which decides how many candidates to rerank
+    final QuantizationProfile profile;
+    final OnDiskGraphIndex index;
+    final ApproximateVectors pqv;
+    final ContentStore content;
+    // null if the index was built without filters
+    final FilterIndex filters;
+    // null if the index was built without a lexical index
+    final LexicalIndex lexical;
+    final SearcherPool searchers;
+    private final int filterScanRows;
+
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private IndexGeneration(int generation, QuantizationProfile profile, OnDiskGraphIndex index, ApproximateVectors pqv, ContentStore content,
+                            FilterIndex filters, LexicalIndex lexical, int concurrency, int filterScanRows)
+    {
+        this.generation = generation;
+        this.profile = profile;
+        this.index = index;
+        this.pqv = pqv;
+        this.content = content;
+        this.filters = filters;
+        this.lexical = lexical;
+        this.searchers = new SearcherPool(index, concurrency);
+        this.filterScanRows = filterScanRows;
+    }
+
+    /**
+     * @param concurrency the most searches that will run at once
+     */
+    static IndexGeneration open(Config config, int generation, int concurrency) throws IOException {
+        return open(config, generation, concurrency, config.useMmap());
+    }
+
+    /**
+     * The graph, compressed vectors, content and secondary indexes are independent files, so they
+     * are opened in parallel; for a large index, startup takes as long as the slowest of them
+     * instead of their sum.
+     *
+     * @param mmap read the graph and compressed vectors through a shared memory mapping
+     *             (instead of a RandomAccessFile per reader)
+     */
+    static IndexGeneration open(Config config, int generation, int concurrency, boolean mmap) throws IOException {
+        var profile = QuantizationProfile.load(config.profilePath());
+        var loader = Executors.newFixedThreadPool(5, r -> {
+            var t = new Thread(r, "index-loader");
+            t.setDaemon(true);
+            return t;
+        });
+        var index = load(loader, () -> {
+            if (!mmap) {
+                return OnDiskGraphIndex.load(new Search.SimpleReaderSupplier(config.annPath(generation)));
+            }
+            var graph = OnDiskGraphIndex.load(new MappedReaderSupplier(config.annPath(generation)));
+            if (config.getPrefetchNodes() > 0) {
+                prefetchFromEntryPoint(graph, config.getPrefetchNodes());
+            }
+            return graph;
+        });
+        var pqv = load(loader, () -> loadApproximateVectors(config, profile, generation, mmap));
+        var content = load(loader, () -> ContentStore.open(config, generation));
+        var filters = load(loader, () -> FilterIndex.open(config, generation));
+        var lexical = load(loader, () -> LexicalIndex.open(config, generation));
+        loader.shutdown();
+
+        try {
+            CompletableFuture.allOf(index, pqv, content, filters, lexical).join();
+        }
+        catch (CompletionException e) {
+            // close whatever did open
+            closeIfLoaded(index, OnDiskGraphIndex::close);
+            closeIfLoaded(pqv, ApproximateVectors::close);
+            closeIfLoaded(content, ContentStore::close);
+            closeIfLoaded(filters, FilterIndex::close);
+            closeIfLoaded(lexical, LexicalIndex::close);
+            switch (e.getCause()) {
+                case UncheckedIOException u -> throw u.getCause();
+                case RuntimeException re -> throw re;
+                case Error error -> throw error;
+                default -> throw e;
+            }
+        }
+
+        if (filters.join() == null) {
+            BuildIndex.log("No filter index for generation %d; filtered searches are disabled until BuildIndex --filters is run", generation);
+        }
+        if (lexical.join() == null) {
+            BuildIndex.log("No lexical index for generation %d; hybrid searches are disabled until BuildIndex --lexical is run", generation);
+        }
+        return new IndexGeneration(generation, profile, index.join(), pqv.join(), content.join(), filters.join(), lexical.join(),
+                                   concurrency, config.getFilterScanRows());
+    }
+
+    private interface Loader<T> {
+        T load() throws IOException;
+    }
+
+    private interface Closer<T> {
+        void close(T t) throws IOException;
+    }
+
+    private static <T> CompletableFuture<T> load(ExecutorService executor, Loader<T> loader) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return loader.load();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, executor);
+    }
+
+    private static <T> void closeIfLoaded(CompletableFuture<T> future, Closer<T> closer) {
+        if (future.isCompletedExceptionally() || future.getNow(null) == null) {
+            return;
+        }
+        try {
+            closer.close(future.join());
+        }
+        catch (IOException | RuntimeException e) {
+            BuildIndex.log("Failed to close a partly opened generation: %s", e);
+        }
+    }
+
+    /**
+     * @return the first-pass codes the index was built for, per its quantization profile: binary
+     * vectors, or PQ codes -- read in place (see MappedPQVectors) if pq_codes is mmap, and otherwise
+     * copied onto the heap.  (The reranker needs no such choice; View.rerankerFor uses whichever
+     * vectors the graph has inline.)
+     */
+    private static ApproximateVectors loadApproximateVectors(Config config, QuantizationProfile profile, int generation, boolean mmap)
+        throws IOException
+    {
+        if (profile.firstPass() == QuantizationProfile.FirstPass.BQ) {
+            return BinaryVectors.open(config.bqVectorsPath(generation));
+        }
+        var path = config.pqVectorsPath(generation);
+        if (config.mapPQCodes()) {
+            return MappedPQVectors.open(path);
+        }
+        if (mmap) {
+            try (var supplier = new MappedReaderSupplier(path);
+                 var reader = supplier.get())
+            {
+                var pq = ProductQuantization.load(reader);
+                reader.seek(0);
+                return ApproximateVectors.onHeap(pq, PQVectors.load(reader));
+            }
+        }
+        try (var reader = new SimpleReader(path)) {
+            var pq = ProductQuantization.load(reader);
+            reader.seek(0);
+            return ApproximateVectors.onHeap(pq, PQVectors.load(reader));
+        }
+    }
+
+    /**
+     * Search for the topK nearest neighbors of q among the nodes accepted by acceptOrds.  Threadsafe.
+     */
+    SearchResult search(VectorFloat<?> q, int topK, Bits acceptOrds) {
+        return search(q, topK, profile.rerankK(topK), true, acceptOrds);
+    }
+
+    /**
+     * Search for the topK nearest neighbors of q among the rows with the given attribute values
+     * (see FilterIndex); an empty filter accepts every row.  Threadsafe.
+     * @throws IllegalStateException if the filter is not empty and this index has no filters
+     */
+    SearchResult search(VectorFloat<?> q, int topK, Map<FilterIndex.Attribute, Set<String>> filter) {
+        if (filter.isEmpty()) {
+            return search(q, topK, Bits.ALL);
+        }
+        if (filters == null) {
+            throw new IllegalStateException("This index was built without filters; run BuildIndex --filters to add them");
+        }
+        return search(q, topK, filters.match(filter));
+    }
+
+    /**
+     * Search for the topK nearest neighbors of q among the rows matching the filter.  Threadsafe.
+     * <p>
+     * The graph search only skips rejected nodes in its results, not in its traversal, so when few
+     * rows match it wanders through many nodes to find topK accepted ones -- or gives up with fewer.
+     * Filters expected to match at most filter_scan_rows rows are answered by PQ-scoring every
+     * matching row and reranking the best instead.
+     */
+    SearchResult search(VectorFloat<?> q, int topK, FilterIndex.Match filter) {
+        if (filter.estimatedSize() <= filterScanRows) {
+            return scan(q, topK, profile.rerankK(topK), filter);
+        }
+        return search(q, topK, profile.rerankK(topK), true, filter);
+    }
+
+    private SearchResult scan(VectorFloat<?> q, int topK, int rerankK, FilterIndex.Match filter) {
+        long start = System.nanoTime();
+        var asf = pqv.scoreFunctionFor(q);
+        // the best rerankK by approximate score, worst first
+        var candidates = new PriorityQueue<SearchResult.NodeScore>(rerankK + 1, Comparator.comparingDouble(ns -> ns.score));
+        int[] scanned = {0};
+        filter.forEach(id -> {
+            scanned[0]++;
+            float score = asf.similarityTo(id);
+            if (candidates.size() < rerankK) {
+                candidates.add(new SearchResult.NodeScore(id, score));
+            } else if (score > candidates.peek().score) {
+                candidates.poll();
+                candidates.add(new SearchResult.NodeScore(id, score));
+            }
+        });
+        float worstApproximateScore = candidates.isEmpty() ? Float.POSITIVE_INFINITY : candidates.peek().score;
+
+        var s = searchers.borrow();
+        try {
+            var reranker = s.view().rerankerFor(q, VectorSimilarityFunction.COSINE);
+            var nodes = candidates.stream()
+                                  .map(ns -> new SearchResult.NodeScore(ns.node, reranker.similarityTo(ns.node)))
+                                  .sorted(Comparator.comparingDouble((SearchResult.NodeScore ns) -> ns.score).reversed())
+                                  .limit(topK)
+                                  .toArray(SearchResult.NodeScore[]::new);
+            filterScanTime.recordSince(start);
+            return new SearchResult(nodes, scanned[0], candidates.size(), worstApproximateScore);
+        }
+        finally {
+            searchers.release(s);
+        }
+    }
+
+    /**
+     * As search(q, topK, acceptOrds), but with the number of approximate results to consider given
+     * explicitly, and optionally without reranking them (so the results are ordered by PQ score alone).
+     */
+    SearchResult search(VectorFloat<?> q, int topK, int rerankK, boolean rerank, Bits acceptOrds) {
+        var s = searchers.borrow();
+        try {
+            // approximate score function for the first pass
+            var asf = pqv.scoreFunctionFor(q);
+            // reranking function for the second pass, timed separately from the graph search that calls it
+            long[] rerankNanos = {0};
+            ScoreFunction.ExactScoreFunction rr = null;
+            if (rerank) {
+                var reranker = s.view().rerankerFor(q, VectorSimilarityFunction.COSINE);
+                rr = node -> {
+                    long start = System.nanoTime();
+                    float score = reranker.similarityTo(node);
+                    rerankNanos[0] += System.nanoTime() - start;
+                    return score;
+                };
+            }
+            // bundle them together
+            var sf = new SearchScoreProvider(asf, rr);
+
+            long start = System.nanoTime();
+            var result = s.searcher().search(sf, // score function
+                                             topK, // this many final results
+                                             rerankK, // out of this many approximate results
+                                             0.0f, // minimum similarity threshold, out of scope for this example
+                                             0.0f, // rerankFloor, out of scope for this example
+                                             acceptOrds); // IDs to allow in the results
+            graphTime.record(System.nanoTime() - start - rerankNanos[0]);
+            if (rerank) {
+                rerankTime.record(rerankNanos[0]);
+            }
+            return result;
+        }
+        finally {
+            searchers.release(s);
+        }
+    }
+
+    /**
+     * Run `queries` searches before serving, so that the graph and codes they touch are paged in and
+     * the JIT has compiled the search path.  The queries are the decoded codes of rows chosen at
+     * random, so they land in the same neighborhoods as real queries do rather than all converging
+     * on the same few nodes, as random vectors would.
+     */
+    void warmUp(int queries) {
+        long start = System.nanoTime();
+        var random = new Random(42);
+        var rows = random.ints(queries, 0, pqv.count()).toArray();
+        IntStream.of(rows).parallel().forEach(row -> {
+            var q = pqv.decode(row);
+            VectorUtil.l2normalize(q);
+            search(q, 10, Bits.ALL);
+        });
+        BuildIndex.log("Warmed up generation %d with %,d searches in %.1fs", generation, queries, (System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Every search starts at the entry point, so the nodes closest to it (by hops) are the hottest in the
+     * graph.  Touch the neighbor lists of the first `limit` of them, breadth-first, so that their pages
+     * are resident before the first query instead of being faulted in one at a time.  (This jvector graph
+     * has a single layer; this is the nearest equivalent of prefetching the upper layers of a hierarchy.)
+     */
+    private static void prefetchFromEntryPoint(OnDiskGraphIndex index, int limit) throws IOException {
+        try (var view = index.getView()) {
+            var visited = new FixedBitSet(index.size());
+            var queue = new ArrayDeque<Integer>();
+            queue.add(view.entryNode());
+            visited.set(view.entryNode());
+            int touched = 0;
+            while (!queue.isEmpty() && touched < limit) {
+                var it = view.getNeighborsIterator(queue.poll());
+                touched++;
+                while (it.hasNext()) {
+                    int neighbor = it.nextInt();
+                    if (!visited.getAndSet(neighbor)) {
+                        queue.add(neighbor);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return false if this generation has already been closed, in which case the caller
+     * should pick up the current one instead
+     */
+    boolean tryAcquire() {
+        while (true) {
+            int n = references.get();
+            if (n == 0) {
+                return false;
+            }
+            if (references.compareAndSet(n, n + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void release() {
+        if (references.decrementAndGet() == 0) {
+            try {
+                index.close();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            searchers.close();
+            pqv.close();
+            content.close();
+            if (filters != null) {
+                filters.close();
+            }
+            if (lexical != null) {
+                lexical.close();
+            }
+        }
+    }
+
+    /**
+     * Give up the opener's reference
+     */
+    @Override
+    public void close() {
+        release();
+    }
+}
@@ -0,0 +1,263 @@
+package io.github.jbellis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import io.github.jbellis.jvector.util.PhysicalCoreExecutor;
+import io.github.jbellis.jvector.vector.types.VectorFloat;
+
+import static io.github.jbellis.BuildIndex.log;
+
+/**
+ * Staged ingest for BuildIndex: shard readers -> encoders -> (graph inserters, content writers),
+ * connected by bounded queues so that a slow stage applies back-pressure to the ones upstream
+ * instead of every thread doing every step in sequence.
+ * <p>
+ * Graph insertion runs on PhysicalCoreExecutor; the other stages get their own (configurable)
+ * thread pools, so Arrow and content store I/O do not compete with it for the physical cores.
+ */
+class IngestPipeline {
+    /** A row after encoding: its assigned id, its full-resolution vector, and its content */
+    record EncodedRow(int id, VectorFloat<?> vector, RowData row) {}
+
+    interface ShardReader {
+        void read(int shardIndex, BiConsumer<RowData, float[]> consumer);
+    }
+
+    interface Encoder {
+        EncodedRow encode(RowData row, float[] embedding);
+    }
+
+    private record RawRow(RowData row, float[] embedding) {}
+
+    // end-of-stream markers, one per consuming thread
+    private static final RawRow RAW_POISON = new RawRow(null, null);
+    private static final EncodedRow ENCODED_POISON = new EncodedRow(-1, null, null);
+
+    private static final long REPORT_INTERVAL_SECONDS = 10;
+
+    private final ShardReader reader;
+    private final Encoder encoder;
+    private final Consumer<EncodedRow> inserter;
+    private final Consumer<EncodedRow> writer;
+
+    private final int readerThreads;
+    private final int encoderThreads;
+    private final int inserterThreads;
+    private final int writerThreads;
+    private final int queueCapacity;
+
+    private final Stage reading = new Stage("read");
+    private final Stage encoding = new Stage("encode");
+    private final Stage inserting = new Stage("insert");
+    private final Stage writing = new Stage("write");
+
+    private volatile Throwable failure;
+
+    IngestPipeline(Config config, ShardReader reader, Encoder encoder, Consumer<EncodedRow> inserter, Consumer<EncodedRow> writer) {
+        this.reader = reader;
+        this.encoder = encoder;
+        this.inserter = inserter;
+        this.writer = writer;
+        this.readerThreads = config.getIngestReaderThreads();
+        this.encoderThreads = config.getIngestEncoderThreads();
+        this.inserterThreads = PhysicalCoreExecutor.pool().getParallelism();
+        this.writerThreads = config.getIngestWriterThreads();
+        this.queueCapacity = config.getIngestQueueCapacity();
+    }
+
+    /**
+     * Run the given shards through every stage, returning once all of their rows have been
+     * inserted into the graph and written to the content store.
+     */
+    void run(List<Integer> shards) {
+        log("Ingesting %d shards with %d readers, %d encoders, %d graph inserters, %d content writers",
+            shards.size(), readerThreads, encoderThreads, inserterThreads, writerThreads);
+        var pending = new ConcurrentLinkedQueue<>(shards);
+        var raw = new ArrayBlockingQueue<RawRow>(queueCapacity);
+        var toGraph = new ArrayBlockingQueue<EncodedRow>(queueCapacity);
+        var toContent = new ArrayBlockingQueue<EncodedRow>(queueCapacity);
+        failure = null;
+
+        var readerPool = Executors.newFixedThreadPool(readerThreads, named("ingest-reader"));
+        var encoderPool = Executors.newFixedThreadPool(encoderThreads, named("ingest-encoder"));
+        var writerPool = Executors.newFixedThreadPool(writerThreads, named("ingest-writer"));
+        var reporter = Executors.newSingleThreadScheduledExecutor(named("ingest-reporter"));
+        reporter.scheduleAtFixedRate(() -> report(raw, toGraph, toContent),
+                                     REPORT_INTERVAL_SECONDS, REPORT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        try {
+            var readers = submit(readerPool, readerThreads, () -> {
+                Integer shard;
+                while ((shard = pending.poll()) != null && failure == null) {
+                    reader.read(shard, (row, embedding) -> {
+                        put(raw, new RawRow(row, embedding));
+                        reading.rows.increment();
+                    });
+                    log("Shard %d read", shard);
+                }
+            });
+            var encoders = submit(encoderPool, encoderThreads, () -> {
+                RawRow r;
+                while ((r = take(raw)) != RAW_POISON) {
+                    var encoded = encoder.encode(r.row(), r.embedding());
+                    encoding.rows.increment();
+                    put(toGraph, encoded);
+                    put(toContent, encoded);
+                }
+            });
+            var inserters = submit(PhysicalCoreExecutor.pool(), inserterThreads, () -> drain(toGraph, inserter, inserting));
+            var writers = submit(writerPool, writerThreads, () -> drain(toContent, writer, writing));
+
+            // shut the stages down in order, each one once everything upstream of it has finished
+            await(readers);
+            endOfStream(raw, RAW_POISON, encoderThreads);
+            await(encoders);
+            endOfStream(toGraph, ENCODED_POISON, inserterThreads);
+            endOfStream(toContent, ENCODED_POISON, writerThreads);
+            await(inserters);
+            await(writers);
+        }
+        finally {
+            reporter.shutdownNow();
+            readerPool.shutdownNow();
+            encoderPool.shutdownNow();
+            writerPool.shutdownNow();
+        }
+        if (failure != null) {
+            throw new RuntimeException("Ingest failed", failure);
+        }
+        report(raw, toGraph, toContent);
+    }
+
+    private void drain(BlockingQueue<EncodedRow> queue, Consumer<EncodedRow> consumer, Stage stage) {
+        EncodedRow row;
+        while ((row = take(queue)) != ENCODED_POISON) {
+            consumer.accept(row);
+            stage.rows.increment();
+        }
+    }
+
+    private List<Future<?>> submit(ExecutorService executor, int threads, Runnable body) {
+        var futures = new ArrayList<Future<?>>(threads);
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(() -> {
+                try {
+                    body.run();
+                }
+                catch (Throwable t) {
+                    // remember the first failure; every blocked stage checks for it and gives up
+                    if (failure == null) {
+                        failure = t;
+                    }
+                    throw t;
+                }
+            }));
+        }
+        return futures;
+    }
+
+    private void await(List<Future<?>> futures) {
+        for (var future : futures) {
+            try {
+                future.get();
+            }
+            catch (ExecutionException e) {
+                // recorded in `failure` by the task itself
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private <T> void endOfStream(BlockingQueue<T> queue, T poison, int consumers) {
+        for (int i = 0; i < consumers; i++) {
+            put(queue, poison);
+        }
+    }
+
+    /** Blocking put that gives up if another stage has failed, so a failure cannot deadlock the pipeline */
+    private <T> void put(BlockingQueue<T> queue, T item) {
+        try {
+            while (!queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+                checkFailure();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Blocking take that gives up if another stage has failed */
+    private <T> T take(BlockingQueue<T> queue) {
+        try {
+            T item;
+            while ((item = queue.poll(100, TimeUnit.MILLISECONDS)) == null) {
+                checkFailure();
+            }
+            return item;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new IllegalStateException("Aborting ingest after failure in another stage", failure);
+        }
+    }
+
+    private void report(BlockingQueue<?> raw, BlockingQueue<?> toGraph, BlockingQueue<?> toContent) {
+        log("%s, %s, %s, %s; queued: %,d to encode, %,d to insert, %,d to write",
+            reading.sample(), encoding.sample(), inserting.sample(), writing.sample(),
+            raw.size(), toGraph.size(), toContent.size());
+        log("%s", Metrics.summary("coherepedia_build_"));
+    }
+
+    private static ThreadFactory named(String prefix) {
+        var n = new AtomicInteger();
+        return r -> {
+            var t = new Thread(r, prefix + "-" + n.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /** Row counter for a single stage, remembering the previous sample so it can report a rate */
+    private static class Stage {
+        private final String name;
+        private final Metrics.Counter rows;
+        private long lastCount;
+        private long lastNanos = System.nanoTime();
+
+        Stage(String name) {
+            this.name = name;
+            this.rows = Metrics.counter("coherepedia_build_rows_total", "Rows through each stage of the ingest pipeline", "stage", name);
+        }
+
+        synchronized String sample() {
+            long now = System.nanoTime();
+            long total = rows.get();
+            double rate = (total - lastCount) * 1e9 / Math.max(1, now - lastNanos);
+            lastCount = total;
+            lastNanos = now;
+            return String.format("%s %,d (%,.0f/s)", name, total, rate);
+        }
+    }
+}
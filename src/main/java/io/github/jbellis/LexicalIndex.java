@@ -0,0 +1,651 @@
+package io.github.jbellis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+
+/**
+ * A BM25 inverted index over the title and text of every row, for the exact-term queries (names,
+ * identifiers, rare words) that embeddings are bad at.
+ * <p>
+ * Like the content, each generation has its own index of only the rows it added, in three files
+ * sharing a base path: the postings (the path itself), the term dictionary (path.terms) and the
+ * token count of every row (path.lengths).  All three are memory-mapped.  A term's postings are
+ * its row ids, delta-encoded, each followed by the term's frequency in that row, all as varints.
+ * The dictionary is sorted by the terms' UTF-8 bytes and binary searched, so it needs no heap.
+ */
+class LexicalIndex implements AutoCloseable {
+    private static final float K1 = 1.2f;
+    private static final float B = 0.75f;
+    private static final int MAX_TERM_LENGTH = 40;
+    // the commonest words in the dataset; their postings would be most of the index and score next to nothing
+    private static final Set<String> STOPWORDS = Set.of("a", "an", "and", "are", "as", "at", "be", "by", "for", "from", "has", "had",
+                                                        "in", "is", "it", "its", "of", "on", "or", "that", "the", "this", "to",
+                                                        "was", "were", "which", "with");
+    // rows per sorted run while building; bounds the build's heap use
+    private static final int RUN_ROWS = 1 << 19;
+    // how many postings to score between checks of the deadline
+    private static final int DEADLINE_CHECK_INTERVAL = 4096;
+    private static final int MAGIC = 0xc0ffee16;
+    private static final int HEADER_LENGTH = 32;
+    private static final int ENTRY_LENGTH = 24;
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private static final ValueLayout.OfShort SHORT = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+
+    record Hit(int id, float score) {}
+
+    /**
+     * @param complete false if the deadline passed before every posting was scored, so the hits
+     *                 are ranked on the rarer query terms alone
+     */
+    record Result(List<Hit> hits, boolean complete) {}
+
+    private final List<Segment> segments;
+    private final long documents;
+    private final float averageLength;
+
+    private LexicalIndex(List<Segment> segments) {
+        this.segments = segments;
+        documents = segments.stream().mapToLong(s -> s.size).sum();
+        long totalLength = segments.stream().mapToLong(s -> s.totalLength).sum();
+        averageLength = documents == 0 ? 1 : (float) totalLength / documents;
+    }
+
+    /**
+     * @return the lexical index of every generation up to the given one, or null if any of them is
+     * missing (an index built before lexical search, until BuildIndex --lexical is run on it)
+     */
+    static LexicalIndex open(Config config, int generation) throws IOException {
+        var segments = new ArrayList<Segment>(generation + 1);
+        try {
+            for (int g = 0; g <= generation; g++) {
+                var path = config.lexicalPath(g);
+                if (!Files.exists(termsPath(path))) {
+                    segments.forEach(Segment::close);
+                    return null;
+                }
+                segments.add(Segment.open(path));
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            segments.forEach(Segment::close);
+            throw e;
+        }
+        return new LexicalIndex(segments);
+    }
+
+    /**
+     * Call the consumer with each indexed term of the text in order: lowercased runs of letters and
+     * digits, skipping stopwords and anything too long to be a word
+     */
+    static void tokenize(String text, Consumer<String> consumer) {
+        if (text == null) {
+            return;
+        }
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                if (i - start <= MAX_TERM_LENGTH) {
+                    var term = text.substring(start, i).toLowerCase(Locale.ROOT);
+                    if (!STOPWORDS.contains(term)) {
+                        consumer.accept(term);
+                    }
+                }
+                start = -1;
+            }
+        }
+    }
+
+    /**
+     * @return the topK rows by BM25 score for the query among those accepted, scoring the rarest
+     * terms first and giving up on the rest once the deadline (from System.nanoTime) has passed
+     */
+    Result search(String query, int topK, IntPredicate accept, long deadline) {
+        record Postings(Segment segment, int entry) {}
+        record Term(List<Postings> postings, long documentFrequency) {}
+
+        var distinct = new LinkedHashSet<String>();
+        tokenize(query, distinct::add);
+        var terms = new ArrayList<Term>();
+        for (var text : distinct) {
+            var bytes = text.getBytes(StandardCharsets.UTF_8);
+            var postings = new ArrayList<Postings>();
+            long df = 0;
+            for (var segment : segments) {
+                int entry = segment.find(bytes);
+                if (entry >= 0) {
+                    postings.add(new Postings(segment, entry));
+                    df += segment.documentFrequency(entry);
+                }
+            }
+            if (df > 0) {
+                terms.add(new Term(postings, df));
+            }
+        }
+        terms.sort(Comparator.comparingLong(Term::documentFrequency));
+
+        var scores = new ScoreAccumulator();
+        boolean complete = true;
+        int scored = 0;
+        scoring:
+        for (var term : terms) {
+            float idf = (float) Math.log(1 + (documents - term.documentFrequency() + 0.5) / (term.documentFrequency() + 0.5));
+            for (var p : term.postings()) {
+                var segment = p.segment();
+                long position = segment.postingsStart(p.entry());
+                long end = segment.postingsEnd(p.entry());
+                int local = 0;
+                while (position < end) {
+                    long delta = segment.readVarInt(position);
+                    position += (int) (delta >>> 32);
+                    local += (int) delta;
+                    long tf = segment.readVarInt(position);
+                    position += (int) (tf >>> 32);
+                    int id = segment.firstId + local;
+                    if (accept.test(id)) {
+                        float f = (int) tf;
+                        float norm = K1 * (1 - B + B * segment.length(local) / averageLength);
+                        scores.add(id, idf * f * (K1 + 1) / (f + norm));
+                    }
+                    if (++scored % DEADLINE_CHECK_INTERVAL == 0 && System.nanoTime() > deadline) {
+                        complete = false;
+                        break scoring;
+                    }
+                }
+            }
+        }
+        return new Result(scores.top(topK), complete);
+    }
+
+    @Override
+    public void close() {
+        segments.forEach(Segment::close);
+    }
+
+    /**
+     * Scores by row id, in an open-addressed table so that accumulating millions of postings
+     * doesn't box each one
+     */
+    private static final class ScoreAccumulator {
+        private int[] ids = new int[1024];
+        private float[] scores = new float[1024];
+        private boolean[] used = new boolean[1024];
+        private int size;
+
+        void add(int id, float score) {
+            int i = slot(id);
+            if (!used[i]) {
+                if (++size > ids.length / 2) {
+                    grow();
+                    i = slot(id);
+                }
+                used[i] = true;
+                ids[i] = id;
+            }
+            scores[i] += score;
+        }
+
+        private int slot(int id) {
+            int mask = ids.length - 1;
+            int i = (id * 0x9E3779B9) & mask;
+            while (used[i] && ids[i] != id) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        private void grow() {
+            var oldIds = ids;
+            var oldScores = scores;
+            var oldUsed = used;
+            ids = new int[oldIds.length * 2];
+            scores = new float[ids.length];
+            used = new boolean[ids.length];
+            for (int j = 0; j < oldIds.length; j++) {
+                if (oldUsed[j]) {
+                    int i = slot(oldIds[j]);
+                    used[i] = true;
+                    ids[i] = oldIds[j];
+                    scores[i] = oldScores[j];
+                }
+            }
+        }
+
+        List<Hit> top(int k) {
+            var best = new PriorityQueue<Hit>(k + 1, Comparator.comparingDouble(Hit::score));
+            for (int i = 0; i < ids.length; i++) {
+                if (used[i] && (best.size() < k || scores[i] > best.peek().score())) {
+                    best.add(new Hit(ids[i], scores[i]));
+                    if (best.size() > k) {
+                        best.poll();
+                    }
+                }
+            }
+            var hits = new ArrayList<>(best);
+            hits.sort(Comparator.comparingDouble(Hit::score).reversed());
+            return hits;
+        }
+    }
+
+    /**
+     * One generation's index.  The dictionary file is a header, the concatenated bytes of every term,
+     * and then a fixed-size entry per term: the offset and length of its bytes, its document
+     * frequency, and the offset of its postings (which end where the next term's begin).
+     */
+    private static final class Segment {
+        final int firstId;
+        final int size;
+        final long totalLength;
+        private final int termCount;
+        private final long entriesOffset;
+        private final Arena arena;
+        private final MemorySegment postings;
+        private final MemorySegment terms;
+        private final MemorySegment lengths;
+
+        private Segment(Arena arena, MemorySegment postings, MemorySegment terms, MemorySegment lengths) throws IOException {
+            if (terms.get(INT, 0) != MAGIC) {
+                throw new IOException("Not a lexical index");
+            }
+            this.arena = arena;
+            this.postings = postings;
+            this.terms = terms;
+            this.lengths = lengths;
+            firstId = terms.get(INT, 4);
+            size = terms.get(INT, 8);
+            totalLength = terms.get(LONG, 12);
+            termCount = terms.get(INT, 20);
+            entriesOffset = terms.get(LONG, 24);
+        }
+
+        static Segment open(Path path) throws IOException {
+            var arena = Arena.ofShared();
+            try {
+                return new Segment(arena, map(path, arena), map(termsPath(path), arena), map(lengthsPath(path), arena));
+            }
+            catch (IOException | RuntimeException e) {
+                arena.close();
+                throw e;
+            }
+        }
+
+        private static MemorySegment map(Path path, Arena arena) throws IOException {
+            try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+            }
+        }
+
+        /**
+         * @return the entry of the term, or -1 if it does not occur in this segment
+         */
+        int find(byte[] term) {
+            int low = 0;
+            int high = termCount - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int c = compare(mid, term);
+                if (c < 0) {
+                    low = mid + 1;
+                } else if (c > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        private int compare(int entry, byte[] term) {
+            long offset = terms.get(LONG, entryOffset(entry));
+            int length = terms.get(INT, entryOffset(entry) + 8);
+            for (int i = 0; i < Math.min(length, term.length); i++) {
+                int c = Byte.compareUnsigned(terms.get(ValueLayout.JAVA_BYTE, offset + i), term[i]);
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return Integer.compare(length, term.length);
+        }
+
+        int documentFrequency(int entry) {
+            return terms.get(INT, entryOffset(entry) + 12);
+        }
+
+        long postingsStart(int entry) {
+            return terms.get(LONG, entryOffset(entry) + 16);
+        }
+
+        long postingsEnd(int entry) {
+            return entry + 1 < termCount ? postingsStart(entry + 1) : postings.byteSize();
+        }
+
+        private long entryOffset(int entry) {
+            return entriesOffset + (long) entry * ENTRY_LENGTH;
+        }
+
+        int length(int local) {
+            return Short.toUnsignedInt(lengths.get(SHORT, (long) local * Short.BYTES));
+        }
+
+        /**
+         * @return the varint at the position in the low 32 bits, and its length in bytes in the high 32
+         */
+        long readVarInt(long position) {
+            int value = 0;
+            int shift = 0;
+            int n = 0;
+            byte b;
+            do {
+                b = postings.get(ValueLayout.JAVA_BYTE, position + n++);
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            return ((long) n << 32) | (value & 0xffffffffL);
+        }
+
+        void close() {
+            arena.close();
+        }
+    }
+
+    private static Path termsPath(Path path) {
+        return path.resolveSibling(path.getFileName() + ".terms");
+    }
+
+    private static Path lengthsPath(Path path) {
+        return path.resolveSibling(path.getFileName() + ".lengths");
+    }
+
+    private static Path tmp(Path path) {
+        return path.resolveSibling(path.getFileName() + ".tmp");
+    }
+
+    /**
+     * Index the title and text of every row in the content store at contentPath, writing the result
+     * to path.  Rows are inverted RUN_ROWS at a time into sorted runs on disk, which are then merged.
+     */
+    static void write(Path path, Path contentPath) throws IOException {
+        var runs = new ArrayList<Path>();
+        try (var content = ColumnarContent.open(contentPath)) {
+            int firstId = content.firstId();
+            var lengths = new short[content.size()];
+            long[] totalLength = {0};
+            var run = new HashMap<String, PostingsBuffer>();
+            int[] runStart = {0};
+            content.forEach(EnumSet.of(ColumnarContent.Column.TITLE, ColumnarContent.Column.TEXT), (row, id) -> {
+                int local = id - firstId;
+                var frequencies = new HashMap<String, Integer>();
+                tokenize(row.title(), term -> frequencies.merge(term, 1, Integer::sum));
+                tokenize(row.text(), term -> frequencies.merge(term, 1, Integer::sum));
+                int length = frequencies.values().stream().mapToInt(Integer::intValue).sum();
+                lengths[local] = (short) Math.min(length, 0xffff);
+                totalLength[0] += length;
+                frequencies.forEach((term, tf) -> run.computeIfAbsent(term, t -> new PostingsBuffer()).add(local, tf));
+
+                if (local + 1 - runStart[0] == RUN_ROWS) {
+                    runs.add(writeRun(path, runs.size(), run));
+                    run.clear();
+                    runStart[0] = local + 1;
+                }
+            });
+            if (!run.isEmpty()) {
+                runs.add(writeRun(path, runs.size(), run));
+            }
+
+            try (var out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp(lengthsPath(path)).toFile())))) {
+                for (short length : lengths) {
+                    out.writeShort(length);
+                }
+            }
+            merge(path, runs, firstId, content.size(), totalLength[0]);
+        }
+        finally {
+            for (var run : runs) {
+                Files.deleteIfExists(run);
+            }
+        }
+        // the dictionary last, since its presence is what marks the index as complete
+        Files.move(tmp(lengthsPath(path)), lengthsPath(path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(tmp(path), path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(tmp(termsPath(path)), termsPath(path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * (local id, term frequency) pairs in id order
+     */
+    private static final class PostingsBuffer {
+        int[] pairs = new int[4];
+        int size;
+
+        void add(int local, int tf) {
+            if (size + 2 > pairs.length) {
+                pairs = Arrays.copyOf(pairs, pairs.length * 2);
+            }
+            pairs[size++] = local;
+            pairs[size++] = tf;
+        }
+    }
+
+    /**
+     * Write the run's terms in UTF-8 byte order, each as its length and bytes, its number of
+     * postings, and the postings (delta-encoded within the run)
+     */
+    private static Path writeRun(Path path, int n, Map<String, PostingsBuffer> run) throws IOException {
+        record Entry(byte[] term, PostingsBuffer postings) {}
+        var entries = run.entrySet().stream()
+                         .map(e -> new Entry(e.getKey().getBytes(StandardCharsets.UTF_8), e.getValue()))
+                         .sorted((a, b) -> Arrays.compareUnsigned(a.term(), b.term()))
+                         .toList();
+        var runPath = path.resolveSibling(path.getFileName() + ".run" + n);
+        try (var out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runPath.toFile()), 1 << 20))) {
+            for (var entry : entries) {
+                out.writeInt(entry.term().length);
+                out.write(entry.term());
+                var pairs = entry.postings().pairs;
+                out.writeInt(entry.postings().size / 2);
+                int previous = 0;
+                for (int i = 0; i < entry.postings().size; i += 2) {
+                    writeVarInt(out, pairs[i] - previous);
+                    writeVarInt(out, pairs[i + 1]);
+                    previous = pairs[i];
+                }
+            }
+        }
+        BuildIndex.log("Wrote lexical run %d with %,d terms", n, entries.size());
+        return runPath;
+    }
+
+    private static final class RunReader {
+        final int n;
+        final DataInputStream in;
+        byte[] term;
+        int count;
+
+        RunReader(int n, Path path) throws IOException {
+            this.n = n;
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(path.toFile()), 1 << 20));
+            advance();
+        }
+
+        /**
+         * Read the next term's header, leaving `term` null at the end of the run
+         */
+        void advance() throws IOException {
+            int length;
+            try {
+                length = in.readInt();
+            }
+            catch (EOFException e) {
+                term = null;
+                in.close();
+                return;
+            }
+            term = new byte[length];
+            in.readFully(term);
+            count = in.readInt();
+        }
+    }
+
+    /**
+     * Merge the runs, which cover consecutive ranges of rows, into the final postings and dictionary
+     */
+    private static void merge(Path path, List<Path> runs, int firstId, int size, long totalLength) throws IOException {
+        var blobPath = path.resolveSibling(path.getFileName() + ".blob");
+        var entriesPath = path.resolveSibling(path.getFileName() + ".entries");
+        var queue = new PriorityQueue<RunReader>((a, b) -> {
+            int c = Arrays.compareUnsigned(a.term, b.term);
+            return c != 0 ? c : Integer.compare(a.n, b.n);
+        });
+        for (int i = 0; i < runs.size(); i++) {
+            var reader = new RunReader(i, runs.get(i));
+            if (reader.term != null) {
+                queue.add(reader);
+            }
+        }
+
+        int termCount = 0;
+        long blobLength = 0;
+        try (var postings = new CountingOutput(tmp(path));
+             var blob = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(blobPath.toFile()), 1 << 20));
+             var entries = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(entriesPath.toFile()), 1 << 20)))
+        {
+            while (!queue.isEmpty()) {
+                var term = queue.peek().term;
+                long postingsOffset = postings.position();
+                int df = 0;
+                int previous = 0;
+                // the same term from each run that has it, in run (and so row) order
+                while (!queue.isEmpty() && Arrays.equals(queue.peek().term, term)) {
+                    var reader = queue.poll();
+                    int local = 0;
+                    for (int i = 0; i < reader.count; i++) {
+                        local += readVarInt(reader.in);
+                        int tf = readVarInt(reader.in);
+                        writeVarInt(postings, local - previous);
+                        writeVarInt(postings, tf);
+                        previous = local;
+                    }
+                    df += reader.count;
+                    reader.advance();
+                    if (reader.term != null) {
+                        queue.add(reader);
+                    }
+                }
+                blob.write(term);
+                entries.writeLong(HEADER_LENGTH + blobLength);
+                entries.writeInt(term.length);
+                entries.writeInt(df);
+                entries.writeLong(postingsOffset);
+                blobLength += term.length;
+                termCount++;
+            }
+        }
+
+        long entriesOffset = (HEADER_LENGTH + blobLength + 7) & ~7L;
+        try (var out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp(termsPath(path)).toFile()), 1 << 20))) {
+            out.writeInt(MAGIC);
+            out.writeInt(firstId);
+            out.writeInt(size);
+            out.writeLong(totalLength);
+            out.writeInt(termCount);
+            out.writeLong(entriesOffset);
+            Files.copy(blobPath, out);
+            for (long i = HEADER_LENGTH + blobLength; i < entriesOffset; i++) {
+                out.write(0);
+            }
+            Files.copy(entriesPath, out);
+        }
+        finally {
+            Files.deleteIfExists(blobPath);
+            Files.deleteIfExists(entriesPath);
+        }
+        BuildIndex.log("Wrote lexical index of %,d terms for %,d rows", termCount, size);
+    }
+
+    /**
+     * A buffered file output that knows how much has been written to it
+     */
+    private static final class CountingOutput implements AutoCloseable {
+        private final BufferedOutputStream out;
+        // not DataOutputStream.size(), which saturates at 2GB
+        private long written;
+
+        CountingOutput(Path path) throws IOException {
+            out = new BufferedOutputStream(new FileOutputStream(path.toFile()), 1 << 20);
+        }
+
+        long position() {
+            return written;
+        }
+
+        void write(int b) throws IOException {
+            out.write(b);
+            written++;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    private static void writeVarInt(CountingOutput out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.readByte();
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+}
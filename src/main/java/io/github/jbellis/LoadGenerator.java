@@ -0,0 +1,144 @@
+package io.github.jbellis;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntConsumer;
+
+import io.github.jbellis.jvector.util.Bits;
+import io.github.jbellis.jvector.vector.VectorUtil;
+import io.github.jbellis.jvector.vector.VectorizationProvider;
+import io.github.jbellis.jvector.vector.types.VectorFloat;
+import io.github.jbellis.jvector.vector.types.VectorTypeSupport;
+
+import static io.github.jbellis.BuildIndex.log;
+
+/**
+ * Measures QPS and latency percentiles at increasing numbers of concurrent clients.
+ * <p>
+ * By default this POSTs to the /search endpoint of a running WebSearch, cycling through the
+ * queries in the given file (one per line).  With --in-process it instead opens the index itself and
+ * searches for random vectors, which takes the embedding call and HTTP out of the picture.
+ * <p>
+ * --reader=mmap or --reader=simple overrides the configured reader for in-process runs, to compare them.
+ * <p>
+ * Usage: LoadGenerator [--in-process [--reader=mmap|simple]] [queries file] [seconds per level]
+ */
+public class LoadGenerator {
+    private static final VectorTypeSupport vts = VectorizationProvider.getInstance().getVectorTypeSupport();
+    private static final Config config = new Config();
+    private static final int[] CLIENTS = {1, 8, 32, 128};
+    private static final String URL = "http://localhost:4567/search";
+
+    public static void main(String[] args) throws Exception {
+        var arguments = new ArrayList<>(Arrays.asList(args));
+        boolean inProcess = arguments.remove("--in-process");
+        boolean mmap = config.useMmap();
+        if (arguments.remove("--reader=simple")) {
+            mmap = false;
+        }
+        if (arguments.remove("--reader=mmap")) {
+            mmap = true;
+        }
+        List<String> queries = arguments.isEmpty()
+                               ? List.of("history of the printing press", "how do vaccines work", "tallest mountain in europe")
+                               : Files.readAllLines(Path.of(arguments.get(0)));
+        int seconds = arguments.size() > 1 ? Integer.parseInt(arguments.get(1)) : 30;
+
+        if (inProcess) {
+            config.validateIndexExists();
+            int maxClients = Arrays.stream(CLIENTS).max().getAsInt();
+            log("Searching in-process with the %s reader", mmap ? "mmap" : "simple");
+            try (var generation = IndexGeneration.open(config, config.currentGeneration(), maxClients, mmap)) {
+                run(seconds, i -> generation.search(randomVector(), 5, Bits.ALL));
+            }
+        } else {
+            var client = HttpClient.newHttpClient();
+            run(seconds, i -> post(client, queries.get(i % queries.size())));
+        }
+    }
+
+    private static void run(int seconds, IntConsumer request) throws InterruptedException {
+        for (int clients : CLIENTS) {
+            // let the JIT and the searcher pool catch up with the new concurrency before measuring
+            measure(clients, Math.max(1, seconds / 5), request);
+            var latencies = measure(clients, seconds, request);
+            Arrays.sort(latencies);
+            log("%2d clients: %,8.1f QPS, p50 %,6.2f ms, p99 %,6.2f ms",
+                clients, (double) latencies.length / seconds,
+                percentile(latencies, 0.50) / 1e6, percentile(latencies, 0.99) / 1e6);
+        }
+    }
+
+    /**
+     * @return the latency of every request completed in the given time, in nanoseconds
+     */
+    static long[] measure(int clients, int seconds, IntConsumer request) throws InterruptedException {
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        var perThread = new ArrayList<List<Long>>();
+        var threads = new ArrayList<Thread>();
+        for (int i = 0; i < clients; i++) {
+            var latencies = new ArrayList<Long>();
+            perThread.add(latencies);
+            int offset = i;
+            threads.add(Thread.ofPlatform().start(() -> {
+                for (int n = offset; System.nanoTime() < deadline; n += clients) {
+                    long start = System.nanoTime();
+                    request.accept(n);
+                    latencies.add(System.nanoTime() - start);
+                }
+            }));
+        }
+        for (var thread : threads) {
+            thread.join();
+        }
+        return perThread.stream().flatMap(List::stream).mapToLong(Long::longValue).toArray();
+    }
+
+    static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))];
+    }
+
+    private static void post(HttpClient client, String query) {
+        var request = HttpRequest.newBuilder(URI.create(URL))
+                                 .header("Content-Type", "application/x-www-form-urlencoded")
+                                 .POST(HttpRequest.BodyPublishers.ofString("query=" + URLEncoder.encode(query, StandardCharsets.UTF_8)))
+                                 .build();
+        try {
+            var response = client.send(request, HttpResponse.BodyHandlers.discarding());
+            if (response.statusCode() != 200) {
+                throw new IllegalStateException("Search failed with HTTP status " + response.statusCode());
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static VectorFloat<?> randomVector() {
+        var random = ThreadLocalRandom.current();
+        var v = vts.createFloatVector(BuildIndex.DIMENSION);
+        for (int i = 0; i < v.length(); i++) {
+            v.set(i, (float) random.nextGaussian());
+        }
+        VectorUtil.l2normalize(v);
+        return v;
+    }
+}
@@ -0,0 +1,192 @@
+package io.github.jbellis;
+
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.file.Path;
+
+import io.github.jbellis.jvector.graph.similarity.ScoreFunction;
+import io.github.jbellis.jvector.pq.ProductQuantization;
+import io.github.jbellis.jvector.vector.VectorizationProvider;
+import io.github.jbellis.jvector.vector.types.VectorFloat;
+import io.github.jbellis.jvector.vector.types.VectorTypeSupport;
+
+/**
+ * The compressed vectors of a .pqv file, read in place through a memory mapping.  PQVectors.load
+ * copies every code onto the heap, which for the full dataset is several GB of small arrays to
+ * allocate and read before the first query; this reads only the codebooks up front and lets the
+ * codes page in as searches touch them.
+ * <p>
+ * The file is what PQVectors.write produces: the codebooks, the number of vectors, the number of
+ * subspaces, and then each vector's code, one byte per subspace.
+ */
+class MappedPQVectors implements ApproximateVectors {
+    private static final VectorTypeSupport vts = VectorizationProvider.getInstance().getVectorTypeSupport();
+
+    private final MappedReaderSupplier supplier;
+    private final MemorySegment segment;
+    private final long codesOffset;
+    private final int count;
+    private final int dimension;
+    private final int subspaces;
+    private final int clusters;
+    // subspace m covers dimensions [offsets[m], offsets[m + 1])
+    private final int[] offsets;
+    // the decoded centroids: centroids[c] is centroid c of every subspace, concatenated
+    private final VectorFloat<?>[] centroids;
+    // magnitudes[m * clusters + c] is the squared norm of centroid c of subspace m
+    private final float[] magnitudes;
+
+    private MappedPQVectors(MappedReaderSupplier supplier, ProductQuantization pq, int[] offsets, long codesOffset, int count) {
+        this.supplier = supplier;
+        this.segment = supplier.segment();
+        this.codesOffset = codesOffset;
+        this.count = count;
+        this.dimension = pq.getOriginalDimension();
+        this.subspaces = pq.getSubspaceCount();
+        this.clusters = pq.getClusterCount();
+        this.offsets = offsets;
+
+        // decoding a code whose every byte is c yields centroid c of each subspace
+        centroids = new VectorFloat<?>[clusters];
+        magnitudes = new float[subspaces * clusters];
+        var code = vts.createByteSequence(subspaces);
+        for (int c = 0; c < clusters; c++) {
+            for (int m = 0; m < subspaces; m++) {
+                code.set(m, (byte) c);
+            }
+            centroids[c] = vts.createFloatVector(dimension);
+            pq.decode(code, centroids[c]);
+            for (int m = 0; m < subspaces; m++) {
+                float magnitude = 0;
+                for (int i = offsets[m]; i < offsets[m + 1]; i++) {
+                    magnitude += centroids[c].get(i) * centroids[c].get(i);
+                }
+                magnitudes[m * clusters + c] = magnitude;
+            }
+        }
+    }
+
+    static MappedPQVectors open(Path path) throws IOException {
+        var supplier = new MappedReaderSupplier(path);
+        try (var reader = supplier.get()) {
+            var pq = ProductQuantization.load(reader);
+            int count = reader.readInt();
+            int subspaces = reader.readInt();
+            long codesOffset = reader.getPosition();
+            if (subspaces != pq.getSubspaceCount() || codesOffset + (long) count * subspaces != supplier.segment().byteSize()) {
+                throw new IOException(String.format("%s does not hold %,d codes of %d bytes", path, count, subspaces));
+            }
+            var offsets = subspaceOffsets(pq);
+            if (offsets == null) {
+                throw new IOException(String.format("%s splits its %d dimensions into %d subspaces differently than expected",
+                                                    path, pq.getOriginalDimension(), subspaces));
+            }
+            return new MappedPQVectors(supplier, pq, offsets, codesOffset, count);
+        }
+        catch (IOException | RuntimeException e) {
+            supplier.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return where each of pq's subspaces starts, with the end of the last appended, or null if pq
+     * does not split its dimensions the way this expects: ProductQuantization does not expose its
+     * split, so this derives it the way jvector does and checks it against pq by decoding a code
+     * that alternates between two clusters, whose every dimension must come from the cluster its
+     * subspace names.
+     */
+    private static int[] subspaceOffsets(ProductQuantization pq) {
+        int dimension = pq.getOriginalDimension();
+        int subspaces = pq.getSubspaceCount();
+        // the first (dimension % subspaces) subspaces get one extra dimension each
+        var offsets = new int[subspaces + 1];
+        for (int m = 0; m < subspaces; m++) {
+            offsets[m + 1] = offsets[m] + dimension / subspaces + (m < dimension % subspaces ? 1 : 0);
+        }
+
+        var code = vts.createByteSequence(subspaces);
+        var even = vts.createFloatVector(dimension);
+        var odd = vts.createFloatVector(dimension);
+        var alternating = vts.createFloatVector(dimension);
+        pq.decode(code, even);
+        for (int m = 0; m < subspaces; m++) {
+            code.set(m, (byte) 1);
+        }
+        pq.decode(code, odd);
+        for (int m = 0; m < subspaces; m += 2) {
+            code.set(m, (byte) 0);
+        }
+        pq.decode(code, alternating);
+        for (int m = 0; m < subspaces; m++) {
+            var expected = m % 2 == 0 ? even : odd;
+            for (int i = offsets[m]; i < offsets[m + 1]; i++) {
+                if (alternating.get(i) != expected.get(i)) {
+                    return null;
+                }
+            }
+        }
+        return offsets;
+    }
+
+    /**
+     * Scores a node by summing, over its subspaces, the query's dot product with and the squared
+     * norm of the centroid its code names, both looked up in tables computed once per query.
+     * Like jvector's, the cosine is scaled to [0, 1].
+     */
+    @Override
+    public ScoreFunction.ApproximateScoreFunction scoreFunctionFor(VectorFloat<?> q) {
+        var dots = new float[subspaces * clusters];
+        for (int c = 0; c < clusters; c++) {
+            var centroid = centroids[c];
+            for (int m = 0; m < subspaces; m++) {
+                float dot = 0;
+                for (int i = offsets[m]; i < offsets[m + 1]; i++) {
+                    dot += q.get(i) * centroid.get(i);
+                }
+                dots[m * clusters + c] = dot;
+            }
+        }
+        float qMagnitude = 0;
+        for (int i = 0; i < q.length(); i++) {
+            qMagnitude += q.get(i) * q.get(i);
+        }
+        float qNorm = (float) Math.sqrt(qMagnitude);
+
+        return node -> {
+            long base = codesOffset + (long) node * subspaces;
+            float dot = 0;
+            float magnitude = 0;
+            for (int m = 0; m < subspaces; m++) {
+                int i = m * clusters + Byte.toUnsignedInt(segment.get(ValueLayout.JAVA_BYTE, base + m));
+                dot += dots[i];
+                magnitude += magnitudes[i];
+            }
+            return (1 + dot / (qNorm * (float) Math.sqrt(magnitude))) / 2;
+        };
+    }
+
+    @Override
+    public VectorFloat<?> decode(int node) {
+        var v = vts.createFloatVector(dimension);
+        long base = codesOffset + (long) node * subspaces;
+        for (int m = 0; m < subspaces; m++) {
+            var centroid = centroids[Byte.toUnsignedInt(segment.get(ValueLayout.JAVA_BYTE, base + m))];
+            for (int i = offsets[m]; i < offsets[m + 1]; i++) {
+                v.set(i, centroid.get(i));
+            }
+        }
+        return v;
+    }
+
+    @Override
+    public int count() {
+        return count;
+    }
+
+    @Override
+    public void close() {
+        supplier.close();
+    }
+}
@@ -0,0 +1,141 @@
+package io.github.jbellis;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import io.github.jbellis.jvector.disk.RandomAccessReader;
+import io.github.jbellis.jvector.disk.ReaderSupplier;
+
+/**
+ * Maps a whole file into memory once and hands out readers over the shared mapping, so reading a
+ * neighbor list or an inline vector is a memory access instead of a syscall.  Readers are cheap,
+ * each has its own position, and any number of threads may use the supplier; the mapping is
+ * released by close(), after which existing readers must not be used.
+ * <p>
+ * Multi-byte values are big-endian, matching what jvector writes through DataOutput.
+ */
+class MappedReaderSupplier implements ReaderSupplier {
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private static final ValueLayout.OfFloat FLOAT = ValueLayout.JAVA_FLOAT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+
+    private final Arena arena;
+    private final MemorySegment segment;
+
+    MappedReaderSupplier(Path path) throws IOException {
+        arena = Arena.ofShared();
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+        }
+        catch (IOException | RuntimeException e) {
+            arena.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the whole mapping, for callers that read it in place
+     */
+    MemorySegment segment() {
+        return segment;
+    }
+
+    @Override
+    public RandomAccessReader get() {
+        return new MappedReader();
+    }
+
+    @Override
+    public void close() {
+        arena.close();
+    }
+
+    private class MappedReader implements RandomAccessReader {
+        private long position;
+
+        @Override
+        public void seek(long offset) {
+            position = offset;
+        }
+
+        @Override
+        public long getPosition() {
+            return position;
+        }
+
+        @Override
+        public long length() {
+            return segment.byteSize();
+        }
+
+        @Override
+        public int readInt() {
+            int value = segment.get(INT, position);
+            position += Integer.BYTES;
+            return value;
+        }
+
+        @Override
+        public long readLong() {
+            long value = segment.get(LONG, position);
+            position += Long.BYTES;
+            return value;
+        }
+
+        @Override
+        public float readFloat() {
+            float value = segment.get(FLOAT, position);
+            position += Float.BYTES;
+            return value;
+        }
+
+        @Override
+        public void readFully(byte[] bytes) {
+            MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, position, bytes, 0, bytes.length);
+            position += bytes.length;
+        }
+
+        @Override
+        public void readFully(ByteBuffer buffer) {
+            int length = buffer.remaining();
+            MemorySegment.ofBuffer(buffer).copyFrom(segment.asSlice(position, length));
+            buffer.position(buffer.limit());
+            position += length;
+        }
+
+        @Override
+        public void readFully(long[] values) {
+            MemorySegment.copy(segment, LONG, position, values, 0, values.length);
+            position += (long) values.length * Long.BYTES;
+        }
+
+        @Override
+        public void readFully(float[] values) {
+            read(values, 0, values.length);
+        }
+
+        @Override
+        public void read(int[] values, int offset, int count) {
+            MemorySegment.copy(segment, INT, position, values, offset, count);
+            position += (long) count * Integer.BYTES;
+        }
+
+        @Override
+        public void read(float[] values, int offset, int count) {
+            MemorySegment.copy(segment, FLOAT, position, values, offset, count);
+            position += (long) count * Float.BYTES;
+        }
+
+        @Override
+        public void close() {
+            // the mapping is owned by the supplier
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package io.github.jbellis;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import org.HdrHistogram.ConcurrentHistogram;
+
+/**
+ * Process-wide counters, latency histograms and gauges, rendered in the Prometheus text format for
+ * /metrics, or summarized on one line for the build log.  Recording only touches a LongAdder or an
+ * HdrHistogram ConcurrentHistogram, so it is cheap enough for the search and ingest hot paths.
+ * <p>
+ * Metrics are created on first use and live as long as the process; asking again for the same name
+ * and labels returns the same metric.  Labels are given as alternating names and values.
+ */
+final class Metrics {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    // latencies are recorded in microseconds, up to this many
+    private static final long MAX_MICROS = TimeUnit.MINUTES.toMicros(10);
+
+    private record Family(String help, String type, Map<String, Object> children) {}
+
+    // sorted so that /metrics output is stable
+    private static final Map<String, Family> families = new ConcurrentSkipListMap<>();
+    private static final AtomicBoolean jvmRegistered = new AtomicBoolean();
+
+    private Metrics() {}
+
+    static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        void increment() {
+            value.increment();
+        }
+
+        void add(long n) {
+            value.add(n);
+        }
+
+        long get() {
+            return value.sum();
+        }
+    }
+
+    static final class Timer {
+        private final ConcurrentHistogram micros = new ConcurrentHistogram(MAX_MICROS, 3);
+        private final LongAdder totalNanos = new LongAdder();
+
+        void record(long nanos) {
+            micros.recordValue(Math.min(MAX_MICROS, Math.max(0, nanos / 1000)));
+            totalNanos.add(nanos);
+        }
+
+        /**
+         * Record the time since `start` (from System.nanoTime)
+         * @return the current time, so that consecutive steps can be timed without calling nanoTime twice
+         */
+        long recordSince(long start) {
+            long now = System.nanoTime();
+            record(now - start);
+            return now;
+        }
+    }
+
+    static Counter counter(String name, String help, String... labels) {
+        return register(name, help, "counter", labels, Counter::new);
+    }
+
+    static Timer timer(String name, String help, String... labels) {
+        return register(name, help, "summary", labels, Timer::new);
+    }
+
+    static void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        register(name, help, "gauge", labels, () -> value);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T register(String name, String help, String type, String[] labels, Supplier<T> create) {
+        var family = families.computeIfAbsent(name, n -> new Family(help, type, new ConcurrentSkipListMap<>()));
+        if (!family.type().equals(type)) {
+            throw new IllegalArgumentException(name + " is already registered as a " + family.type());
+        }
+        return (T) family.children().computeIfAbsent(labels(labels), k -> create.get());
+    }
+
+    /**
+     * Heap and off-heap memory gauges, and a histogram of GC durations per collector.  Idempotent.
+     */
+    static void registerJvmMetrics() {
+        if (!jvmRegistered.compareAndSet(false, true)) {
+            return;
+        }
+        var memory = ManagementFactory.getMemoryMXBean();
+        gauge("jvm_memory_used_bytes", "Memory in use", () -> memory.getHeapMemoryUsage().getUsed(), "area", "heap");
+        gauge("jvm_memory_used_bytes", "Memory in use", () -> memory.getNonHeapMemoryUsage().getUsed(), "area", "nonheap");
+        gauge("jvm_memory_max_bytes", "Maximum memory available", () -> memory.getHeapMemoryUsage().getMax(), "area", "heap");
+        for (var pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            gauge("jvm_buffer_pool_used_bytes", "Off-heap memory in use by NIO buffers", pool::getMemoryUsed, "pool", pool.getName());
+        }
+
+        for (var gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (!(gc instanceof NotificationEmitter emitter)) {
+                continue;
+            }
+            var pauses = timer("jvm_gc_pause_seconds", "GC durations by collector (for a concurrent collector, its cycles rather than pauses)",
+                               "gc", gc.getName());
+            emitter.addNotificationListener((notification, handback) -> {
+                if (notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                    var info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                    pauses.record(TimeUnit.MILLISECONDS.toNanos(info.getGcInfo().getDuration()));
+                }
+            }, null, null);
+        }
+    }
+
+    /**
+     * @return every metric in the Prometheus text exposition format
+     */
+    static String prometheus() {
+        var out = new StringBuilder();
+        families.forEach((name, family) -> {
+            out.append("# HELP ").append(name).append(' ').append(family.help()).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type()).append('\n');
+            family.children().forEach((labels, metric) -> {
+                switch (metric) {
+                    case Counter c -> sample(out, name, labels, c.get());
+                    case DoubleSupplier g -> sample(out, name, labels, g.getAsDouble());
+                    case Timer t -> {
+                        var histogram = t.micros.copy();
+                        for (double q : QUANTILES) {
+                            var quantile = (labels.isEmpty() ? "" : labels + ",") + "quantile=\"" + q + "\"";
+                            sample(out, name, quantile, histogram.getValueAtPercentile(q * 100) / 1e6);
+                        }
+                        sample(out, name + "_sum", labels, t.totalNanos.sum() / 1e9);
+                        sample(out, name + "_count", labels, histogram.getTotalCount());
+                    }
+                    default -> throw new IllegalStateException("Unknown metric " + metric);
+                }
+            });
+        });
+        return out.toString();
+    }
+
+    /**
+     * @return the median and p99 of every timer whose name starts with the prefix, then heap,
+     * off-heap and GC totals; for periodic log lines
+     */
+    static String summary(String prefix) {
+        var parts = new ArrayList<String>();
+        families.forEach((name, family) -> {
+            if (!name.startsWith(prefix) || !family.type().equals("summary")) {
+                return;
+            }
+            family.children().forEach((labels, metric) -> {
+                var histogram = ((Timer) metric).micros.copy();
+                if (histogram.getTotalCount() > 0) {
+                    parts.add(String.format("%s%s p50 %,d us p99 %,d us", name.substring(prefix.length()), labels.isEmpty() ? "" : "{" + labels + "}",
+                                            histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(99)));
+                }
+            });
+        });
+
+        var memory = ManagementFactory.getMemoryMXBean();
+        long direct = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class).stream()
+                                       .mapToLong(BufferPoolMXBean::getMemoryUsed).sum();
+        long gcCount = 0;
+        long gcMillis = 0;
+        for (var gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += Math.max(0, gc.getCollectionCount());
+            gcMillis += Math.max(0, gc.getCollectionTime());
+        }
+        parts.add(String.format("heap %,d MB, NIO buffers %,d MB, %,d GCs taking %,d ms",
+                                memory.getHeapMemoryUsage().getUsed() / (1024 * 1024), direct / (1024 * 1024), gcCount, gcMillis));
+        return String.join("; ", parts);
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    private static String labels(String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name/value pairs");
+        }
+        var joined = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                joined.append(',');
+            }
+            var value = labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+            joined.append(labels[i]).append("=\"").append(value).append('"');
+        }
+        return joined.toString();
+    }
+}
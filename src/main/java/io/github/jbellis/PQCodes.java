@@ -0,0 +1,62 @@
+package io.github.jbellis;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.github.jbellis.jvector.pq.PQVectors;
+import io.github.jbellis.jvector.vector.types.ByteSequence;
+
+/**
+ * Fixed-capacity, append-only storage for the PQ codes of the rows being indexed, which also
+ * hands out the row ids.  Appending is lock-free: an id is claimed with a single atomic increment
+ * and its code stored into a slot of an array that is allocated once, up front, so the build no
+ * longer serializes on a shared ArrayList (or pays for growing it to 41M entries).
+ * <p>
+ * This is a live List view suitable for PQVectors.  A slot is written by the thread that claimed
+ * its id, before that id is handed to graph insertion; graph insertion is the only reader during
+ * the build, so it always sees the code for any node it can reach.
+ */
+class PQCodes extends AbstractList<ByteSequence<?>> implements RandomAccess {
+    private final ByteSequence<?>[] codes;
+    private final AtomicInteger nextId;
+
+    PQCodes(int capacity) {
+        codes = new ByteSequence<?>[capacity];
+        nextId = new AtomicInteger();
+    }
+
+    /**
+     * Create storage that starts out holding the given codes, e.g. from a checkpoint
+     */
+    PQCodes(int capacity, PQVectors restored) {
+        this(capacity);
+        for (int i = 0; i < restored.count(); i++) {
+            codes[i] = restored.get(i);
+        }
+        nextId.set(restored.count());
+    }
+
+    /**
+     * Store `code` under the next free id.
+     * @return the id assigned to the row
+     */
+    int append(ByteSequence<?> code) {
+        int id = nextId.getAndIncrement();
+        if (id >= codes.length) {
+            throw new IllegalStateException(String.format("More than the expected %,d rows were ingested", codes.length));
+        }
+        codes[id] = code;
+        return id;
+    }
+
+    @Override
+    public ByteSequence<?> get(int id) {
+        return codes[id];
+    }
+
+    @Override
+    public int size() {
+        return Math.min(nextId.get(), codes.length);
+    }
+}
@@ -0,0 +1,160 @@
+package io.github.jbellis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+
+import io.github.jbellis.jvector.graph.SearchResult;
+import io.github.jbellis.jvector.util.Bits;
+import io.github.jbellis.jvector.vector.VectorizationProvider;
+import io.github.jbellis.jvector.vector.types.VectorTypeSupport;
+
+import static io.github.jbellis.BuildIndex.log;
+
+/**
+ * Serves searches of one partition of a partitioned index to PartitionedIndex in another process,
+ * so that the partitions can be spread across machines.
+ * <p>
+ * The protocol is deliberately minimal.  A client sends any number of requests over one connection,
+ * waiting for each response before sending the next.  A request is topK, a bitmask of the content
+ * columns to return (by ordinal), and the query vector as its dimension followed by its floats.
+ * The response is the number of hits, then each hit's id, score and requested columns, each column
+ * as its UTF-8 length (-1 for null) and bytes.  Everything is big-endian, as DataOutputStream writes.
+ * <p>
+ * Usage: PartitionServer partition [port]
+ */
+public class PartitionServer {
+    static final int DEFAULT_PORT = 4600;
+    private static final VectorTypeSupport vts = VectorizationProvider.getInstance().getVectorTypeSupport();
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: PartitionServer partition [port]");
+            System.exit(1);
+        }
+        int partition = Integer.parseInt(args[0]);
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT + partition;
+        var config = new Config().forPartition(partition);
+        config.validateIndexExists();
+        Metrics.registerJvmMetrics();
+
+        int current = config.currentGeneration();
+        log("Loading partition %d from %s", partition, config.annPath(current));
+        var generation = IndexGeneration.open(config, current, config.getServerThreads());
+        if (config.getWarmupQueries() > 0) {
+            generation.warmUp(config.getWarmupQueries());
+        }
+        // one thread per connection waits on the network; the searches themselves share the search pool
+        var searchPool = new SearchPool(config.getSearchThreads());
+        var connections = Executors.newCachedThreadPool(r -> {
+            var t = new Thread(r, "partition-connection");
+            t.setDaemon(true);
+            return t;
+        });
+        try (var server = new ServerSocket(port)) {
+            log("Serving partition %d on port %d", partition, port);
+            while (true) {
+                var socket = server.accept();
+                connections.execute(() -> serve(socket, generation, searchPool));
+            }
+        }
+    }
+
+    private static void serve(Socket socket, IndexGeneration generation, SearchPool searchPool) {
+        try (socket;
+             var in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             var out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream())))
+        {
+            socket.setTcpNoDelay(true);
+            while (true) {
+                int topK;
+                try {
+                    topK = in.readInt();
+                }
+                catch (EOFException e) {
+                    return;
+                }
+                var columns = columns(in.readInt());
+                var q = vts.createFloatVector(in.readInt());
+                for (int i = 0; i < q.length(); i++) {
+                    q.set(i, in.readFloat());
+                }
+
+                SearchResult.NodeScore[] results = searchPool.call(() -> generation.search(q, topK, Bits.ALL).getNodes());
+                out.writeInt(results.length);
+                for (var ns : results) {
+                    out.writeInt(ns.node);
+                    out.writeFloat(ns.score);
+                    RowData row = columns.isEmpty() ? null : generation.content.get(ns.node, columns);
+                    for (var column : columns) {
+                        writeString(out, column.of(row));
+                    }
+                }
+                out.flush();
+            }
+        }
+        catch (IOException e) {
+            log("Closing connection from %s: %s", socket.getRemoteSocketAddress(), e);
+        }
+    }
+
+    static int mask(Set<ColumnarContent.Column> columns) {
+        int mask = 0;
+        for (var column : columns) {
+            mask |= 1 << column.ordinal();
+        }
+        return mask;
+    }
+
+    static Set<ColumnarContent.Column> columns(int mask) {
+        var columns = EnumSet.noneOf(ColumnarContent.Column.class);
+        for (var column : ColumnarContent.Column.values()) {
+            if ((mask & (1 << column.ordinal())) != 0) {
+                columns.add(column);
+            }
+        }
+        return columns;
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        var bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        var bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the row with the given columns, in the order they are sent, and the others null
+     */
+    static RowData row(List<String> values, Set<ColumnarContent.Column> columns) {
+        var fields = new String[ColumnarContent.Column.values().length];
+        int i = 0;
+        for (var column : columns) {
+            fields[column.ordinal()] = values.get(i++);
+        }
+        return new RowData(fields[0], fields[1], fields[2]);
+    }
+}
@@ -0,0 +1,326 @@
+package io.github.jbellis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import io.github.jbellis.jvector.util.Bits;
+import io.github.jbellis.jvector.vector.types.VectorFloat;
+
+import static io.github.jbellis.BuildIndex.log;
+
+/**
+ * Searches every partition of a partitioned index in parallel and merges their results.  Each
+ * partition is either opened in this process or, if partition_servers gives an address for it,
+ * searched through the PartitionServer there.  Scores are the reranked similarities to the query,
+ * so they are comparable across partitions and the merged top K is just the best K of them all.
+ * <p>
+ * In-process partitions are searched on the search pool, if one is given, like the searches of an
+ * unpartitioned index; remote ones, which only wait on the network, on a pool of their own.
+ * <p>
+ * A search waits at most partition_timeout_ms for all of its partitions together; the results of any
+ * that are later are left out, like those of a partition that fails.
+ * <p>
+ * When partitioning by centroid, partition_probes limits each search to the partitions whose
+ * centroids are nearest the query, trading some recall for less work per query.
+ */
+class PartitionedIndex implements AutoCloseable {
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final int READ_TIMEOUT_MILLIS = 10_000;
+
+    /**
+     * @param id the row's id within its partition
+     */
+    record Hit(int partition, int id, float score, RowData row) {}
+
+    private interface Partition extends AutoCloseable {
+        List<Hit> search(VectorFloat<?> q, int topK, Set<ColumnarContent.Column> columns) throws IOException;
+
+        @Override
+        void close();
+    }
+
+    private final Partitioning partitioning;
+    private final List<Partition> partitions;
+    private final int probes;
+    private final long timeoutNanos;
+    // for remote partitions, and for local ones when there is no search pool
+    private final ExecutorService executor;
+    // null to search local partitions on executor
+    private final SearchPool searchPool;
+    private final List<Metrics.Timer> partitionTimes = new ArrayList<>();
+    private final List<Metrics.Counter> partitionErrors = new ArrayList<>();
+
+    private PartitionedIndex(Partitioning partitioning, List<Partition> partitions, int probes, int timeoutMillis, SearchPool searchPool) {
+        this.partitioning = partitioning;
+        this.partitions = partitions;
+        this.probes = probes;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.searchPool = searchPool;
+        this.executor = Executors.newCachedThreadPool(r -> {
+            var t = new Thread(r, "partition-search");
+            t.setDaemon(true);
+            return t;
+        });
+        for (int p = 0; p < partitions.size(); p++) {
+            partitionTimes.add(Metrics.timer("coherepedia_search_partition_seconds", "Search time per query and partition, including the RPC if remote",
+                                             "partition", String.valueOf(p)));
+            partitionErrors.add(Metrics.counter("coherepedia_search_partition_errors_total", "Partition searches that failed or timed out, leaving their results out",
+                                                "partition", String.valueOf(p)));
+        }
+    }
+
+    /**
+     * @param concurrency the most searches that will run at once against each in-process partition
+     * @param searchPool where to search the in-process partitions, or null to use a pool of our own
+     */
+    static PartitionedIndex open(Config config, int concurrency, SearchPool searchPool) throws IOException {
+        var partitioning = Partitioning.load(config);
+        var partitions = new ArrayList<Partition>(config.getPartitions());
+        try {
+            for (int p = 0; p < config.getPartitions(); p++) {
+                var address = config.getPartitionServer(p);
+                if (address == null) {
+                    var partitionConfig = config.forPartition(p);
+                    int current = partitionConfig.currentGeneration();
+                    log("Loading partition %d from %s", p, partitionConfig.annPath(current));
+                    var generation = IndexGeneration.open(partitionConfig, current, concurrency);
+                    partitions.add(new LocalPartition(p, generation));
+                    if (config.getWarmupQueries() > 0) {
+                        generation.warmUp(config.getWarmupQueries());
+                    }
+                } else {
+                    log("Searching partition %d at %s", p, address);
+                    partitions.add(new RemotePartition(p, address));
+                }
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            partitions.forEach(Partition::close);
+            throw e;
+        }
+        return new PartitionedIndex(partitioning, partitions, config.getPartitionProbes(), config.getPartitionTimeoutMillis(), searchPool);
+    }
+
+    /**
+     * @return the topK nearest rows to q across the partitions probed, with the given columns of
+     * their content.  A partition that fails, or does not answer in time, is left out rather than
+     * failing the search.
+     */
+    List<Hit> search(VectorFloat<?> q, int topK, Set<ColumnarContent.Column> columns) {
+        long deadline = System.nanoTime() + timeoutNanos;
+        var probed = partitioning.probe(q, probes);
+        var futures = new ArrayList<CompletableFuture<List<Hit>>>();
+        for (int p : probed) {
+            var partition = partitions.get(p);
+            Supplier<List<Hit>> search = () -> {
+                long start = System.nanoTime();
+                try {
+                    return partition.search(q, topK, columns);
+                }
+                catch (IOException | RuntimeException e) {
+                    partitionErrors.get(p).increment();
+                    log("Search of partition %d failed: %s", p, e);
+                    return List.<Hit>of();
+                }
+                finally {
+                    partitionTimes.get(p).recordSince(start);
+                }
+            };
+            futures.add(searchPool != null && partition instanceof LocalPartition
+                        ? searchPool.submit(search)
+                        : CompletableFuture.supplyAsync(search, executor));
+        }
+
+        var hits = new ArrayList<Hit>();
+        for (int i = 0; i < futures.size(); i++) {
+            int p = probed.get(i);
+            try {
+                hits.addAll(futures.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+            }
+            catch (TimeoutException e) {
+                // the search carries on in the background, but this query no longer waits for it
+                partitionErrors.get(p).increment();
+                log("Search of partition %d did not answer within %d ms", p, TimeUnit.NANOSECONDS.toMillis(timeoutNanos));
+            }
+            catch (ExecutionException e) {
+                partitionErrors.get(p).increment();
+                log("Search of partition %d failed: %s", p, e.getCause());
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+        hits.sort(Comparator.comparingDouble(Hit::score).reversed());
+        return hits.subList(0, Math.min(topK, hits.size()));
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        partitions.forEach(Partition::close);
+    }
+
+    private record LocalPartition(int partition, IndexGeneration generation) implements Partition {
+        @Override
+        public List<Hit> search(VectorFloat<?> q, int topK, Set<ColumnarContent.Column> columns) {
+            var hits = new ArrayList<Hit>(topK);
+            for (var ns : generation.search(q, topK, Bits.ALL).getNodes()) {
+                RowData row = columns.isEmpty() ? null : generation.content.get(ns.node, columns);
+                hits.add(new Hit(partition, ns.node, ns.score, row));
+            }
+            return hits;
+        }
+
+        @Override
+        public void close() {
+            generation.close();
+        }
+    }
+
+    /**
+     * A partition searched through a PartitionServer, over a pool of connections that are each
+     * used by one search at a time
+     */
+    private static final class RemotePartition implements Partition {
+        private record Connection(Socket socket, DataInputStream in, DataOutputStream out) {}
+
+        /**
+         * The connection failed before the server started answering -- the request could not be
+         * sent, or the connection was closed before any of the response arrived -- as an idle
+         * connection does when the server has restarted since it was last used
+         */
+        private static final class StaleConnectionException extends IOException {
+            StaleConnectionException(IOException cause) {
+                super(cause);
+            }
+        }
+
+        private final int partition;
+        private final InetSocketAddress address;
+        private final ConcurrentLinkedQueue<Connection> idle = new ConcurrentLinkedQueue<>();
+
+        RemotePartition(int partition, String address) {
+            this.partition = partition;
+            var parts = address.split(":");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Expected host:port for partition " + partition + ", not " + address);
+            }
+            this.address = new InetSocketAddress(parts[0], Integer.parseInt(parts[1]));
+        }
+
+        @Override
+        public List<Hit> search(VectorFloat<?> q, int topK, Set<ColumnarContent.Column> columns) throws IOException {
+            var connection = idle.poll();
+            if (connection != null) {
+                try {
+                    return search(connection, q, topK, columns);
+                }
+                catch (StaleConnectionException e) {
+                    // the server may have restarted since this connection was last used; try once more on a new one.
+                    // Anything else, a read timeout in particular, is not retried, so a slow partition costs one timeout.
+                }
+            }
+            try {
+                return search(connect(), q, topK, columns);
+            }
+            catch (StaleConnectionException e) {
+                throw (IOException) e.getCause();
+            }
+        }
+
+        private List<Hit> search(Connection connection, VectorFloat<?> q, int topK, Set<ColumnarContent.Column> columns) throws IOException {
+            // the columns come back in ordinal order, whatever the order of `columns`
+            var sent = PartitionServer.columns(PartitionServer.mask(columns));
+            try {
+                var out = connection.out();
+                var in = connection.in();
+                int n;
+                try {
+                    out.writeInt(topK);
+                    out.writeInt(PartitionServer.mask(sent));
+                    out.writeInt(q.length());
+                    for (int i = 0; i < q.length(); i++) {
+                        out.writeFloat(q.get(i));
+                    }
+                    out.flush();
+                    n = in.readInt();
+                }
+                catch (SocketTimeoutException e) {
+                    throw e;
+                }
+                catch (EOFException | SocketException e) {
+                    // closed or reset by the other end before it answered
+                    throw new StaleConnectionException(e);
+                }
+
+                var hits = new ArrayList<Hit>(n);
+                for (int i = 0; i < n; i++) {
+                    int id = in.readInt();
+                    float score = in.readFloat();
+                    var values = new ArrayList<String>(sent.size());
+                    for (int c = 0; c < sent.size(); c++) {
+                        values.add(PartitionServer.readString(in));
+                    }
+                    hits.add(new Hit(partition, id, score, sent.isEmpty() ? null : PartitionServer.row(values, sent)));
+                }
+                idle.add(connection);
+                return hits;
+            }
+            catch (IOException | RuntimeException e) {
+                connection.socket().close();
+                throw e;
+            }
+        }
+
+        private Connection connect() throws IOException {
+            var socket = new Socket();
+            try {
+                socket.connect(address, CONNECT_TIMEOUT_MILLIS);
+                socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true);
+                return new Connection(socket,
+                                      new DataInputStream(new BufferedInputStream(socket.getInputStream())),
+                                      new DataOutputStream(new BufferedOutputStream(socket.getOutputStream())));
+            }
+            catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() {
+            Connection connection;
+            while ((connection = idle.poll()) != null) {
+                try {
+                    connection.socket().close();
+                }
+                catch (IOException e) {
+                    // keep going, so the rest are closed too
+                    log("Failed to close a connection to partition %d: %s", partition, e);
+                }
+            }
+        }
+    }
+}
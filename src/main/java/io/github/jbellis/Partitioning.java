@@ -0,0 +1,197 @@
+package io.github.jbellis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+import io.github.jbellis.jvector.vector.VectorUtil;
+import io.github.jbellis.jvector.vector.VectorizationProvider;
+import io.github.jbellis.jvector.vector.types.VectorFloat;
+import io.github.jbellis.jvector.vector.types.VectorTypeSupport;
+
+import static io.github.jbellis.BuildIndex.log;
+
+/**
+ * How a partitioned index divides the rows between its partitions, each of which is built and
+ * served as an independent index with its own graph, compressed vectors and content.
+ * <p>
+ * SHARD gives each partition a contiguous range of the dataset's shards, so each partition's build
+ * reads only its own shards.  CENTROID clusters a sample of the embeddings into one centroid per
+ * partition and assigns each row to its nearest centroid, so each build reads every shard but
+ * keeps only its rows.  In exchange, a search can probe just the partitions whose centroids are
+ * nearest the query.
+ */
+class Partitioning {
+    enum Strategy {
+        SHARD, CENTROID
+    }
+
+    private static final VectorTypeSupport vts = VectorizationProvider.getInstance().getVectorTypeSupport();
+    private static final int KMEANS_ITERATIONS = 20;
+
+    private final int count;
+    private final Strategy strategy;
+    // null unless partitioning by centroid
+    private final List<VectorFloat<?>> centroids;
+
+    private Partitioning(int count, Strategy strategy, List<VectorFloat<?>> centroids) {
+        this.count = count;
+        this.strategy = strategy;
+        this.centroids = centroids;
+    }
+
+    /**
+     * @return the configured partitioning, loading the centroids saved by a previous build; or, if
+     * there are none yet, computing them from the sample and saving them
+     */
+    static Partitioning forBuild(Config config, Supplier<List<VectorFloat<?>>> sample) throws IOException {
+        if (config.getPartitionBy() == Strategy.CENTROID && !Files.exists(config.centroidsPath())) {
+            log("Clustering into %d partition centroids", config.getPartitions());
+            var centroids = kmeans(sample.get(), config.getPartitions());
+            try (var out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(config.centroidsPath().toFile())))) {
+                out.writeInt(centroids.size());
+                out.writeInt(BuildIndex.DIMENSION);
+                for (var centroid : centroids) {
+                    for (int i = 0; i < centroid.length(); i++) {
+                        out.writeFloat(centroid.get(i));
+                    }
+                }
+            }
+        }
+        return load(config);
+    }
+
+    /**
+     * @return the partitioning of an index that has been built
+     */
+    static Partitioning load(Config config) throws IOException {
+        if (config.getPartitionBy() != Strategy.CENTROID) {
+            return new Partitioning(config.getPartitions(), config.getPartitionBy(), null);
+        }
+        try (var in = new DataInputStream(new BufferedInputStream(new FileInputStream(config.centroidsPath().toFile())))) {
+            int n = in.readInt();
+            int dimension = in.readInt();
+            if (n != config.getPartitions()) {
+                throw new IllegalStateException(String.format("%s has %d centroids, but partitions is %d", config.centroidsPath(), n, config.getPartitions()));
+            }
+            var centroids = new ArrayList<VectorFloat<?>>(n);
+            for (int c = 0; c < n; c++) {
+                var centroid = vts.createFloatVector(dimension);
+                for (int i = 0; i < dimension; i++) {
+                    centroid.set(i, in.readFloat());
+                }
+                centroids.add(centroid);
+            }
+            return new Partitioning(n, Strategy.CENTROID, centroids);
+        }
+    }
+
+    /**
+     * @return the shards partition p's build reads
+     */
+    List<Integer> shards(int p) {
+        if (strategy == Strategy.CENTROID) {
+            return IntStream.range(0, BuildIndex.N_SHARDS).boxed().toList();
+        }
+        int start = (int) ((long) BuildIndex.N_SHARDS * p / count);
+        int end = (int) ((long) BuildIndex.N_SHARDS * (p + 1) / count);
+        return IntStream.range(start, end).boxed().toList();
+    }
+
+    /**
+     * @return a test of whether a row, by its embedding, belongs to partition p
+     */
+    Predicate<float[]> accepts(int p) {
+        if (strategy == Strategy.SHARD) {
+            return embedding -> true;
+        }
+        return embedding -> nearest(vts.createFloatVector(embedding)) == p;
+    }
+
+    /**
+     * @param probes the number of partitions to search; 0 for all of them
+     * @return the partitions to search for the query: those whose centroids are nearest to it, if
+     * partitioning by centroid, and otherwise all of them
+     */
+    List<Integer> probe(VectorFloat<?> q, int probes) {
+        var all = IntStream.range(0, count).boxed().toList();
+        if (strategy != Strategy.CENTROID || probes <= 0 || probes >= count) {
+            return all;
+        }
+        return all.stream()
+                  .sorted(Comparator.comparingDouble(c -> -VectorUtil.dotProduct(q, centroids.get(c))))
+                  .limit(probes)
+                  .toList();
+    }
+
+    private int nearest(VectorFloat<?> v) {
+        return nearest(v, centroids);
+    }
+
+    private static int nearest(VectorFloat<?> v, List<VectorFloat<?>> centroids) {
+        int best = 0;
+        float bestScore = Float.NEGATIVE_INFINITY;
+        for (int c = 0; c < centroids.size(); c++) {
+            // the embeddings are normalized, so this ranks by cosine
+            float score = VectorUtil.dotProduct(v, centroids.get(c));
+            if (score > bestScore) {
+                best = c;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Spherical k-means: Lloyd's algorithm with cosine assignment and normalized centroids,
+     * starting from k distinct random sample points
+     */
+    private static List<VectorFloat<?>> kmeans(List<VectorFloat<?>> sample, int k) {
+        var random = new Random(42);
+        var centroids = new ArrayList<VectorFloat<?>>(k);
+        random.ints(0, sample.size()).distinct().limit(k).forEach(i -> centroids.add(sample.get(i).copy()));
+
+        var assignments = new int[sample.size()];
+        for (int iteration = 0; iteration < KMEANS_ITERATIONS; iteration++) {
+            IntStream.range(0, sample.size()).parallel().forEach(i -> assignments[i] = nearest(sample.get(i), centroids));
+
+            var sums = new ArrayList<VectorFloat<?>>(k);
+            var sizes = new int[k];
+            for (int c = 0; c < k; c++) {
+                sums.add(vts.createFloatVector(BuildIndex.DIMENSION));
+            }
+            for (int i = 0; i < sample.size(); i++) {
+                VectorUtil.addInPlace(sums.get(assignments[i]), sample.get(i));
+                sizes[assignments[i]]++;
+            }
+            for (int c = 0; c < k; c++) {
+                // an empty cluster keeps its old centroid
+                if (sizes[c] > 0) {
+                    VectorUtil.l2normalize(sums.get(c));
+                    centroids.set(c, sums.get(c));
+                }
+            }
+        }
+
+        var sizes = new int[k];
+        for (int a : assignments) {
+            sizes[a]++;
+        }
+        log("Partition shares of the sample: %s", IntStream.of(sizes)
+                                                          .mapToObj(n -> String.format("%.1f%%", 100.0 * n / sample.size()))
+                                                          .toList());
+        return centroids;
+    }
+}
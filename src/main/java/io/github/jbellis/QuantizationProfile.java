@@ -0,0 +1,87 @@
+package io.github.jbellis;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * How an index's vectors are compressed, which trades memory for recall and latency:
+ * <ul>
+ * <li>pqSubspaces: the bytes per row of the PQ codes that the graph is built with (and, with
+ *     firstPass PQ, searched with)
+ * <li>firstPass: the codes that score candidates during a search: PQ, or binary quantization
+ *     (one bit per dimension: cheaper to score but coarser, and at 128 bytes per row twice the size
+ *     of the default PQ codes; pqSubspaces is what sets the first pass's memory)
+ * <li>rerank: the vectors stored inline in the graph for reranking: LVQ (a byte per dimension) or
+ *     the full-precision vectors
+ * </ul>
+ * The profile an index is built with is saved alongside its codebooks, and servers read it from
+ * there rather than from config.properties, so they always match the index they are serving.
+ */
+record QuantizationProfile(int pqSubspaces, FirstPass firstPass, Rerank rerank) {
+    enum FirstPass {
+        PQ, BQ
+    }
+
+    enum Rerank {
+        LVQ, FULL
+    }
+
+    /**
+     * How many times more candidates a binary first pass reranks than a PQ one.  The bits only
+     * approximate each vector's angle, so the true neighbors rank much further down the first pass
+     * than with PQ; 4x is a starting point, to be checked against RecallBenchmark's recall.
+     */
+    static final int BQ_OVERQUERY = 4;
+
+    /** What every index was built with before profiles were configurable */
+    static final QuantizationProfile DEFAULT = new QuantizationProfile(BuildIndex.DIMENSION * 4 / 64, FirstPass.PQ, Rerank.LVQ);
+
+    static QuantizationProfile parse(Properties props) {
+        return new QuantizationProfile(Integer.parseInt(props.getProperty("pq_subspaces", String.valueOf(DEFAULT.pqSubspaces()))),
+                                       FirstPass.valueOf(props.getProperty("first_pass", "pq").toUpperCase(Locale.ROOT)),
+                                       Rerank.valueOf(props.getProperty("rerank_vectors", "lvq").toUpperCase(Locale.ROOT)));
+    }
+
+    /**
+     * @return the profile saved with the codebooks at path, or DEFAULT for an index built before
+     * profiles were saved
+     */
+    static QuantizationProfile load(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return DEFAULT;
+        }
+        var props = new Properties();
+        try (var in = new FileInputStream(path.toFile())) {
+            props.load(in);
+        }
+        return parse(props);
+    }
+
+    /**
+     * @return the number of first-pass candidates to rerank for topK results
+     */
+    int rerankK(int topK) {
+        int rerankK = Search.rerankK(topK);
+        return firstPass == FirstPass.BQ ? rerankK * BQ_OVERQUERY : rerankK;
+    }
+
+    void save(Path path) throws IOException {
+        var props = new Properties();
+        props.setProperty("pq_subspaces", String.valueOf(pqSubspaces));
+        props.setProperty("first_pass", firstPass.name().toLowerCase(Locale.ROOT));
+        props.setProperty("rerank_vectors", rerank.name().toLowerCase(Locale.ROOT));
+        try (var out = new FileOutputStream(path.toFile())) {
+            props.store(out, "quantization profile the index was built with");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d PQ subspaces, %s first pass, %s reranking", pqSubspaces, firstPass, rerank);
+    }
+}
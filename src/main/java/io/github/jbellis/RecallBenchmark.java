@@ -0,0 +1,351 @@
+package io.github.jbellis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import io.github.jbellis.jvector.util.Bits;
+import io.github.jbellis.jvector.vector.VectorSimilarityFunction;
+import io.github.jbellis.jvector.vector.VectorizationProvider;
+import io.github.jbellis.jvector.vector.types.VectorFloat;
+import io.github.jbellis.jvector.vector.types.VectorTypeSupport;
+
+import static io.github.jbellis.BuildIndex.N_SHARDS;
+import static io.github.jbellis.BuildIndex.log;
+
+/**
+ * Measures recall against exact ground truth, and latency, across search settings: topK, rerankK,
+ * the first pass alone (PQ or binary) vs reranking, and the number of concurrent searches.
+ * <p>
+ * The queries are vectors sampled from the dataset.  Each is held out by excluding its own row (and
+ * any exact duplicates of it) both from the ground truth and, through acceptOrds, from the search
+ * results.  The ground truth is the exact top 100 of every query over all the dataset's shards,
+ * found by a parallel brute-force scan and mapped to index ids by matching row content.  It is saved
+ * to coherepedia.gt in the index directory so that later runs can skip the scan; it is recomputed
+ * when the index generation changes, or with --recompute.  Rows added by --append are not scanned,
+ * so run this against a freshly built index.
+ * <p>
+ * Usage: RecallBenchmark [--recompute] [queries] [seconds per thread count]
+ */
+public class RecallBenchmark {
+    private static final VectorTypeSupport vts = VectorizationProvider.getInstance().getVectorTypeSupport();
+    private static final Config config = new Config();
+    private static final int MAX_K = 100;
+    private static final int[] TOP_K = {10, 100};
+    private static final double[] OVERQUERY = {1.0, 1.5, 2.0, 4.0};
+    private static final int[] THREADS = {1, 4, 16, Runtime.getRuntime().availableProcessors()};
+    // a row this similar to a query is the query itself
+    private static final float SELF_SIMILARITY = 1.0f - 1e-6f;
+
+    /**
+     * @param selfIds the query's own row, and its exact duplicates
+     * @param groundTruth the ids of the nearest other rows, nearest first
+     */
+    record Query(VectorFloat<?> vector, int[] selfIds, int[] groundTruth) {}
+
+    private record Candidate(float score, long hash) {}
+
+    public static void main(String[] args) throws Exception {
+        var arguments = new ArrayList<>(Arrays.asList(args));
+        boolean recompute = arguments.remove("--recompute");
+        int nQueries = arguments.size() > 0 ? Integer.parseInt(arguments.get(0)) : 1000;
+        int seconds = arguments.size() > 1 ? Integer.parseInt(arguments.get(1)) : 20;
+        config.validateIndexExists();
+        config.validateDatasetPath();
+
+        int generation = config.currentGeneration();
+        int maxThreads = Arrays.stream(THREADS).max().getAsInt();
+        try (var index = IndexGeneration.open(config, generation, maxThreads)) {
+            var queries = recompute ? null : load(config.groundTruthPath(), generation);
+            if (queries == null) {
+                queries = computeGroundTruth(index, nQueries);
+                save(config.groundTruthPath(), generation, queries);
+            }
+
+            log("Warming up");
+            evaluate(index, queries, 10, index.profile.rerankK(10), true);
+
+            // a binary first pass needs proportionally more candidates, so sweep around its default instead
+            int scale = index.profile.firstPass() == QuantizationProfile.FirstPass.BQ ? QuantizationProfile.BQ_OVERQUERY : 1;
+            for (int topK : TOP_K) {
+                report(topK, "first pass only", evaluate(index, queries, topK, topK, false));
+                for (double overquery : OVERQUERY) {
+                    int rerankK = (int) Math.ceil(topK * overquery * scale);
+                    report(topK, String.format("rerank %d", rerankK), evaluate(index, queries, topK, rerankK, true));
+                }
+                report(topK, String.format("rerank %d (default)", index.profile.rerankK(topK)),
+                       evaluate(index, queries, topK, index.profile.rerankK(topK), true));
+            }
+
+            for (int topK : TOP_K) {
+                for (int threads : THREADS) {
+                    var finalQueries = queries;
+                    var latencies = LoadGenerator.measure(threads, seconds, n -> {
+                        var q = finalQueries.get(n % finalQueries.size());
+                        index.search(q.vector(), topK, index.profile.rerankK(topK), true, acceptOrds(q));
+                    });
+                    Arrays.sort(latencies);
+                    log("topK %3d, %3d threads: %,9.1f QPS, p50 %,6.2f ms, p99 %,6.2f ms",
+                        topK, threads, (double) latencies.length / seconds,
+                        LoadGenerator.percentile(latencies, 0.50) / 1e6, LoadGenerator.percentile(latencies, 0.99) / 1e6);
+                }
+            }
+        }
+    }
+
+    private record Evaluation(double recall, long[] latencies) {}
+
+    /**
+     * Run every query once, on this thread
+     */
+    private static Evaluation evaluate(IndexGeneration index, List<Query> queries, int topK, int rerankK, boolean rerank) {
+        var latencies = new long[queries.size()];
+        double recall = 0;
+        for (int i = 0; i < queries.size(); i++) {
+            var q = queries.get(i);
+            long start = System.nanoTime();
+            var result = index.search(q.vector(), topK, rerankK, rerank, acceptOrds(q));
+            latencies[i] = System.nanoTime() - start;
+
+            var expected = new HashSet<Integer>();
+            for (int j = 0; j < Math.min(topK, q.groundTruth().length); j++) {
+                expected.add(q.groundTruth()[j]);
+            }
+            int found = 0;
+            for (var ns : result.getNodes()) {
+                if (expected.contains(ns.node)) {
+                    found++;
+                }
+            }
+            recall += (double) found / topK;
+        }
+        Arrays.sort(latencies);
+        return new Evaluation(recall / queries.size(), latencies);
+    }
+
+    private static void report(int topK, String label, Evaluation evaluation) {
+        log("topK %3d, %-26s recall@%d %.3f, p50 %,6.2f ms, p99 %,6.2f ms",
+            topK, label, topK, evaluation.recall(),
+            LoadGenerator.percentile(evaluation.latencies(), 0.50) / 1e6,
+            LoadGenerator.percentile(evaluation.latencies(), 0.99) / 1e6);
+    }
+
+    private static Bits acceptOrds(Query q) {
+        if (q.selfIds().length == 0) {
+            return Bits.ALL;
+        }
+        return ord -> {
+            for (int id : q.selfIds()) {
+                if (id == ord) {
+                    return false;
+                }
+            }
+            return true;
+        };
+    }
+
+    private static List<Query> computeGroundTruth(IndexGeneration index, int nQueries) throws InterruptedException, ExecutionException {
+        var vectors = new ArrayList<>(TrainingSample.sample(config, N_SHARDS, nQueries, 1234));
+        Collections.shuffle(vectors, new Random(0));
+        vectors.subList(Math.min(nQueries, vectors.size()), vectors.size()).clear();
+
+        log("Computing exact top %d for %,d queries over %d shards", MAX_K, vectors.size(), N_SHARDS);
+        var nearest = new ArrayList<PriorityQueue<Candidate>>();
+        var selfHashes = new ArrayList<Set<Long>>();
+        for (int i = 0; i < vectors.size(); i++) {
+            nearest.add(new PriorityQueue<>(Comparator.comparingDouble(Candidate::score)));
+            selfHashes.add(new HashSet<>());
+        }
+        var executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            var futures = new ArrayList<Future<ShardScan>>(N_SHARDS);
+            for (int i = 0; i < N_SHARDS; i++) {
+                var filename = config.filenameForShard(i);
+                futures.add(executor.submit(() -> new ShardScan(vectors).scan(filename)));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                var scan = futures.get(i).get();
+                for (int q = 0; q < vectors.size(); q++) {
+                    for (var candidate : scan.nearest.get(q)) {
+                        offer(nearest.get(q), candidate);
+                    }
+                    selfHashes.get(q).addAll(scan.selfHashes.get(q));
+                }
+                if ((i + 1) % 50 == 0) {
+                    log("Scanned %d of %d shards", i + 1, N_SHARDS);
+                }
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        // find the ids of the rows in the ground truth by their content
+        log("Matching ground truth rows to ids");
+        var ids = new HashMap<Long, List<Integer>>();
+        nearest.forEach(pq -> pq.forEach(c -> ids.put(c.hash(), new ArrayList<>())));
+        selfHashes.forEach(hashes -> hashes.forEach(h -> ids.put(h, new ArrayList<>())));
+        index.content.forEach((row, id) -> {
+            var matches = ids.get(contentHash(row));
+            if (matches != null) {
+                matches.add(id);
+            }
+        });
+        long unmatched = ids.values().stream().filter(List::isEmpty).count();
+        if (unmatched > 0) {
+            log("%,d ground truth rows were not found in the index", unmatched);
+        }
+
+        var queries = new ArrayList<Query>(vectors.size());
+        for (int q = 0; q < vectors.size(); q++) {
+            var self = selfHashes.get(q).stream().flatMap(h -> ids.get(h).stream()).mapToInt(Integer::intValue).toArray();
+            var ranked = new ArrayList<>(nearest.get(q));
+            ranked.sort(Comparator.comparingDouble(Candidate::score).reversed());
+            var groundTruth = ranked.stream().flatMap(c -> ids.get(c.hash()).stream()).limit(MAX_K).mapToInt(Integer::intValue).toArray();
+            queries.add(new Query(vectors.get(q), self, groundTruth));
+        }
+        return queries;
+    }
+
+    /**
+     * The nearest rows of one shard to each query
+     */
+    private static class ShardScan {
+        final List<VectorFloat<?>> queries;
+        final List<PriorityQueue<Candidate>> nearest = new ArrayList<>();
+        final List<Set<Long>> selfHashes = new ArrayList<>();
+
+        ShardScan(List<VectorFloat<?>> queries) {
+            this.queries = queries;
+            for (int i = 0; i < queries.size(); i++) {
+                nearest.add(new PriorityQueue<>(MAX_K + 1, Comparator.comparingDouble(Candidate::score)));
+                selfHashes.add(new HashSet<>());
+            }
+        }
+
+        ShardScan scan(String filename) {
+            BuildIndex.forEachRow(filename, (row, embedding) -> {
+                var v = vts.createFloatVector(embedding);
+                long hash = 0;
+                boolean hashed = false;
+                for (int q = 0; q < queries.size(); q++) {
+                    float score = VectorSimilarityFunction.COSINE.compare(queries.get(q), v);
+                    var pq = nearest.get(q);
+                    if (pq.size() == MAX_K && score <= pq.peek().score() && score < SELF_SIMILARITY) {
+                        continue;
+                    }
+                    if (!hashed) {
+                        hash = contentHash(row);
+                        hashed = true;
+                    }
+                    if (score >= SELF_SIMILARITY) {
+                        selfHashes.get(q).add(hash);
+                    } else {
+                        offer(pq, new Candidate(score, hash));
+                    }
+                }
+            });
+            return this;
+        }
+    }
+
+    private static void offer(PriorityQueue<Candidate> pq, Candidate candidate) {
+        if (pq.size() < MAX_K) {
+            pq.add(candidate);
+        } else if (candidate.score() > pq.peek().score()) {
+            pq.poll();
+            pq.add(candidate);
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a of the row's fields, to identify a dataset row in the content store
+     */
+    private static long contentHash(RowData row) {
+        long hash = 0xcbf29ce484222325L;
+        for (var field : List.of(row.url(), row.title(), row.text())) {
+            for (int i = 0; i < field.length(); i++) {
+                hash = (hash ^ field.charAt(i)) * 0x100000001b3L;
+            }
+            hash = (hash ^ '\n') * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static void save(Path path, int generation, List<Query> queries) throws IOException {
+        try (var out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path.toFile())))) {
+            out.writeInt(generation);
+            out.writeInt(queries.size());
+            for (var q : queries) {
+                out.writeInt(q.vector().length());
+                for (int i = 0; i < q.vector().length(); i++) {
+                    out.writeFloat(q.vector().get(i));
+                }
+                writeInts(out, q.selfIds());
+                writeInts(out, q.groundTruth());
+            }
+        }
+        log("Saved ground truth to %s", path);
+    }
+
+    /**
+     * @return the saved queries, or null if there are none for the given generation
+     */
+    private static List<Query> load(Path path, int generation) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (var in = new DataInputStream(new BufferedInputStream(new FileInputStream(path.toFile())))) {
+            if (in.readInt() != generation) {
+                log("Ground truth in %s is for another generation; recomputing it", path);
+                return null;
+            }
+            int n = in.readInt();
+            var queries = new ArrayList<Query>(n);
+            for (int q = 0; q < n; q++) {
+                var vector = vts.createFloatVector(in.readInt());
+                for (int i = 0; i < vector.length(); i++) {
+                    vector.set(i, in.readFloat());
+                }
+                queries.add(new Query(vector, readInts(in), readInts(in)));
+            }
+            log("Loaded ground truth for %,d queries from %s", n, path);
+            return queries;
+        }
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int v : values) {
+            out.writeInt(v);
+        }
+    }
+
+    private static int[] readInts(DataInputStream in) throws IOException {
+        var values = new int[in.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+}
@@ -0,0 +1,89 @@
+package io.github.jbellis;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded LRU cache of the final result ids of WebSearch queries, so that a repeated popular
+ * query skips the embedding and graph search entirely.  Entries expire after a TTL, and are keyed
+ * on the generation they were computed against as well as the query and its options, so results
+ * from a previous generation are never served; clear() drops them when the server switches.
+ */
+class ResultCache {
+    /**
+     * @param query the query text, normalized as for the embedding cache
+     */
+    record Key(int generation, String query, Map<FilterIndex.Attribute, Set<String>> filter, boolean hybrid, boolean collapse) {}
+
+    private record Entry(int[] ids, long expiresAt) {}
+
+    private final Map<Key, Entry> cache;
+    private final long ttlNanos;
+    private final Metrics.Counter hits = Metrics.counter("coherepedia_result_cache_hits_total", "Searches answered from the result cache");
+    private final Metrics.Counter misses = Metrics.counter("coherepedia_result_cache_misses_total", "Searches not found in the result cache");
+
+    ResultCache(int capacity, long ttlSeconds) {
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    static Key key(int generation, String query, Map<FilterIndex.Attribute, Set<String>> filter, boolean hybrid, boolean collapse) {
+        return new Key(generation, CachingEmbeddingProvider.normalize(query), filter, hybrid, collapse);
+    }
+
+    /**
+     * @return the cached result ids, best first, or null if there are none or they have expired
+     */
+    int[] get(Key key) {
+        Entry entry;
+        synchronized (cache) {
+            entry = cache.get(key);
+            if (entry != null && System.nanoTime() - entry.expiresAt() > 0) {
+                cache.remove(key);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.ids();
+    }
+
+    void put(Key key, int[] ids) {
+        synchronized (cache) {
+            cache.put(key, new Entry(ids, System.nanoTime() + ttlNanos));
+        }
+    }
+
+    /**
+     * Drop every entry, e.g. because they were all computed against a generation no longer served
+     */
+    void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    long hits() {
+        return hits.get();
+    }
+
+    long misses() {
+        return misses.get();
+    }
+
+    int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+}
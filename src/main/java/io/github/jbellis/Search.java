@@ -3,61 +3,82 @@ package io.github.jbellis;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.UncheckedIOException;
-import java.util.List;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
 
-import com.cohere.api.Cohere;
-import com.cohere.api.requests.EmbedRequest;
-import com.cohere.api.types.EmbedInputType;
 import io.github.jbellis.jvector.disk.ReaderSupplier;
 import io.github.jbellis.jvector.disk.SimpleReader;
-import io.github.jbellis.jvector.graph.GraphSearcher;
-import io.github.jbellis.jvector.graph.disk.OnDiskGraphIndex;
-import io.github.jbellis.jvector.graph.similarity.SearchScoreProvider;
-import io.github.jbellis.jvector.pq.PQVectors;
-import io.github.jbellis.jvector.util.Bits;
-import io.github.jbellis.jvector.vector.VectorSimilarityFunction;
-import io.github.jbellis.jvector.vector.VectorizationProvider;
+import io.github.jbellis.jvector.graph.SearchResult;
 import io.github.jbellis.jvector.vector.types.VectorFloat;
-import io.github.jbellis.jvector.vector.types.VectorTypeSupport;
-import net.openhft.chronicle.map.ChronicleMapBuilder;
 
 import static java.lang.Math.max;
 import static java.lang.Math.pow;
 
 public class Search {
-    private static final VectorTypeSupport vts = VectorizationProvider.getInstance().getVectorTypeSupport();
     private static final Config config = new Config();
+    private static final EmbeddingProvider embeddings = EmbeddingProvider.fromConfig(config);
 
+    /**
+     * @param args --hybrid to fuse lexical and vector results (see HybridSearch), and optional
+     *             filters, as attribute=value[,value...] (see FilterIndex)
+     */
     public static void main(String[] args) throws IOException {
         config.validateIndexExists();
         config.validateCohereKey();
+        var params = new HashMap<String, String>();
+        boolean hybrid = false;
+        for (var arg : args) {
+            if (arg.equals("--hybrid")) {
+                hybrid = true;
+                continue;
+            }
+            var parts = arg.split("=", 2);
+            if (parts.length != 2) {
+                System.out.format("Expected attribute=value, not %s%n", arg);
+                System.exit(1);
+            }
+            FilterIndex.Attribute.forKey(parts[0]);
+            params.put(parts[0], parts[1]);
+        }
+        var filter = FilterIndex.parse(params::get);
 
         // Prompt user for a query string
         System.out.println("Search for: ");
         String query = System.console().readLine();
 
-        // ask Cohere to embed the query
-        var q = getVectorEmbedding(query);
+        if (config.getPartitions() > 0) {
+            if (hybrid || !filter.isEmpty()) {
+                System.out.println("Filters and hybrid search are not supported on a partitioned index");
+                System.exit(1);
+            }
+            try (var index = PartitionedIndex.open(config, 1, null)) {
+                var topK = 3;
+                var hits = index.search(getVectorEmbedding(query), topK, ColumnarContent.ALL_COLUMNS);
+                System.out.format("%nTop %d results:%n%n", topK);
+                for (var hit : hits) {
+                    System.out.println(hit.row().toMarkdown());
+                }
+            }
+            return;
+        }
 
-        // open the index and search for the query
-        try (var index = OnDiskGraphIndex.load(new SimpleReaderSupplier());
-             var pqvReader = new SimpleReader(config.pqVectorsPath());
-             var contentMap = ChronicleMapBuilder.of((Class<Integer>) (Class) Integer.class, (Class<RowData>) (Class) RowData.class)
-                                                 .createPersistedTo(config.mapPath().toFile()))
+        // open the index and search for the query, asking Cohere to embed it
+        try (var generation = IndexGeneration.open(config, config.currentGeneration(), 1);
+             var lexicalExecutor = Executors.newSingleThreadExecutor())
         {
-            var pqv = PQVectors.load(pqvReader);
-
-            var searcher = new GraphSearcher(index);
-
-            var asf = pqv.scoreFunctionFor(q, VectorSimilarityFunction.COSINE);
-            var rr = index.getView().rerankerFor(q, VectorSimilarityFunction.COSINE);
-            var sf = new SearchScoreProvider(asf, rr);
-
             var topK = 3;
-            var results = searcher.search(sf, topK, rerankK(topK), 0.0f, 0.0f, Bits.ALL);
+            SearchResult.NodeScore[] results;
+            if (hybrid) {
+                results = new HybridSearch(lexicalExecutor, null, config.getLexicalBudgetMillis())
+                          .search(generation, query, () -> getVectorEmbedding(query), topK, filter)
+                          .toArray(SearchResult.NodeScore[]::new);
+            } else {
+                results = generation.search(getVectorEmbedding(query), topK, filter).getNodes();
+            }
             System.out.format("%nTop %d results:%n%n", topK);
-            for (var ns : results.getNodes()) {
-                var row = contentMap.get(ns.node);
+            for (var ns : results) {
+                var row = generation.content.get(ns.node);
                 System.out.println(row.toMarkdown());
             }
         }
@@ -69,28 +90,24 @@ public class Search {
     }
 
     public static VectorFloat<?> getVectorEmbedding(String text) {
-        Cohere cohere = Cohere.builder().token(config.getCohereKey()).clientName("snippet").build();
-        var request = EmbedRequest.builder().texts(List.of(text)).model("embed-multilingual-v3.0").inputType(EmbedInputType.SEARCH_QUERY).build();
-        var response = cohere.embed(request).getEmbeddingsFloats();
-        if (response.isEmpty()) {
-            throw new IllegalStateException("No embeddings returned -- probably Cohere thinks your text is 'unsafe'");
-        }
-        return toVector(response.get().getEmbeddings().get(0));
+        return embeddings.embed(text);
     }
 
-    private static VectorFloat<?> toVector(List<Double> embeddings) {
-        var vector = new float[embeddings.size()];
-        for (int i = 0; i < embeddings.size(); i++) {
-            vector[i] = embeddings.get(i).floatValue();
-        }
-        return vts.createFloatVector(vector);
+    static EmbeddingProvider embeddingProvider() {
+        return embeddings;
     }
 
     static class SimpleReaderSupplier implements ReaderSupplier {
+        private final Path path;
+
+        SimpleReaderSupplier(Path path) {
+            this.path = path;
+        }
+
         @Override
         public SimpleReader get() {
             try {
-                return new SimpleReader(config.annPath());
+                return new SimpleReader(path);
             }
             catch (FileNotFoundException e) {
                 throw new UncheckedIOException(e);
@@ -0,0 +1,82 @@
+package io.github.jbellis;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * Runs the CPU-bound parts of a search -- the graph search and reranking, and the BM25 scoring of
+ * hybrid searches -- on a fixed number of threads, one per physical core by default, while the
+ * request thread that submitted them waits.
+ * Request threads spend most of their time waiting on the embedding call, so there can be many
+ * more of them than cores (especially virtual ones); this keeps them from all searching at once
+ * and thrashing the caches, and queues the excess instead.
+ */
+class SearchPool implements Executor {
+    private static final Metrics.Timer queueTime = Metrics.timer("coherepedia_search_queue_seconds", "Time a search waited for a search thread");
+
+    private final ExecutorService executor;
+
+    /**
+     * @param threads the number of search threads; 0 for one per physical core
+     */
+    SearchPool(int threads) {
+        this.executor = Executors.newFixedThreadPool(threads > 0 ? threads : physicalCores(), r -> {
+            var t = new Thread(r, "search");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @return the result of running task on a search thread, waiting for it; what task throws
+     * is rethrown as is
+     */
+    <T> T call(Supplier<T> task) {
+        try {
+            return submit(task).join();
+        }
+        catch (CompletionException e) {
+            switch (e.getCause()) {
+                case RuntimeException re -> throw re;
+                case Error error -> throw error;
+                default -> throw e;
+            }
+        }
+    }
+
+    /**
+     * @return a future for the result of running task on a search thread, for callers that run
+     * several searches at once; it must not be waited on from a search thread
+     */
+    <T> CompletableFuture<T> submit(Supplier<T> task) {
+        long submitted = System.nanoTime();
+        return CompletableFuture.supplyAsync(() -> {
+            queueTime.recordSince(submitted);
+            return task.get();
+        }, executor);
+    }
+
+    /**
+     * Run task on a search thread, e.g. the lexical leg of a hybrid search, which is CPU-bound too
+     */
+    @Override
+    public void execute(Runnable task) {
+        long submitted = System.nanoTime();
+        executor.execute(() -> {
+            queueTime.recordSince(submitted);
+            task.run();
+        });
+    }
+
+    /**
+     * The same estimate jvector's PhysicalCoreExecutor makes: half the hardware threads, assuming
+     * SMT, unless jvector.physical_core_count says otherwise
+     */
+    static int physicalCores() {
+        return Integer.getInteger("jvector.physical_core_count", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    }
+}
@@ -0,0 +1,83 @@
+package io.github.jbellis;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.github.jbellis.jvector.graph.GraphSearcher;
+import io.github.jbellis.jvector.graph.disk.OnDiskGraphIndex;
+
+/**
+ * GraphSearcher keeps per-search state and is not threadsafe, and each index view holds its own
+ * reader, so concurrent requests each need their own.  This pool creates them on demand, up to
+ * one per server thread, and hands them out borrow/return style so they are reused across requests.
+ */
+class SearcherPool implements AutoCloseable {
+    /** A searcher, and the view it searches, which also builds its rerankers */
+    record Searcher(GraphSearcher searcher, OnDiskGraphIndex.View view) {}
+
+    private final OnDiskGraphIndex index;
+    private final int capacity;
+    private final BlockingQueue<Searcher> idle;
+    private final AtomicInteger created = new AtomicInteger();
+
+    SearcherPool(OnDiskGraphIndex index, int capacity) {
+        this.index = index;
+        this.capacity = capacity;
+        this.idle = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * @return an idle searcher, creating one if there are none and the pool is not yet full,
+     * or else waiting for one to be returned
+     */
+    Searcher borrow() {
+        var searcher = idle.poll();
+        if (searcher != null) {
+            return searcher;
+        }
+        if (created.getAndIncrement() < capacity) {
+            // one view (and so one reader) per searcher: the searcher opens it, and closing the searcher closes it
+            GraphSearcher gs;
+            try {
+                gs = new GraphSearcher(index);
+            }
+            catch (RuntimeException | Error e) {
+                // give the slot back, or a failure to open a view would shrink the pool for good
+                created.decrementAndGet();
+                throw e;
+            }
+            return new Searcher(gs, (OnDiskGraphIndex.View) gs.getView());
+        }
+        created.decrementAndGet();
+        try {
+            return idle.take();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    void release(Searcher searcher) {
+        idle.add(searcher);
+    }
+
+    /**
+     * Close the searchers that have been returned, and their views; only call this once nothing is borrowed
+     */
+    @Override
+    public void close() {
+        Searcher searcher;
+        while ((searcher = idle.poll()) != null) {
+            try {
+                searcher.searcher().close();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package io.github.jbellis;
+
+import java.util.List;
+import java.util.Random;
+
+import io.github.jbellis.jvector.vector.VectorUtil;
+import io.github.jbellis.jvector.vector.VectorizationProvider;
+import io.github.jbellis.jvector.vector.types.VectorFloat;
+import io.github.jbellis.jvector.vector.types.VectorTypeSupport;
+
+/**
+ * Stands in for Cohere when testing locally: returns a random unit vector seeded by the text,
+ * so the same text always embeds the same way, without an API key or a network call.
+ * The results are meaningless as search results, but exercise the same code paths.
+ * <p>
+ * Optionally, each call sleeps for a fixed latency first, standing in for the round trip to
+ * Cohere, so that load tests see requests wait on embedding the way they would in production.
+ */
+class StubEmbeddingProvider implements EmbeddingProvider {
+    private static final VectorTypeSupport vts = VectorizationProvider.getInstance().getVectorTypeSupport();
+
+    private final int dimension;
+    private final long latencyMillis;
+
+    StubEmbeddingProvider(int dimension, long latencyMillis) {
+        this.dimension = dimension;
+        this.latencyMillis = latencyMillis;
+    }
+
+    @Override
+    public VectorFloat<?> embed(String text) {
+        roundTrip();
+        return vectorFor(text);
+    }
+
+    /**
+     * One simulated round trip for the whole batch, as with Cohere
+     */
+    @Override
+    public List<VectorFloat<?>> embedAll(List<String> texts) {
+        roundTrip();
+        return texts.stream().<VectorFloat<?>>map(this::vectorFor).toList();
+    }
+
+    private void roundTrip() {
+        if (latencyMillis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(latencyMillis);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private VectorFloat<?> vectorFor(String text) {
+        var random = new Random(text.hashCode());
+        var v = vts.createFloatVector(dimension);
+        for (int i = 0; i < dimension; i++) {
+            v.set(i, (float) random.nextGaussian());
+        }
+        VectorUtil.l2normalize(v);
+        return v;
+    }
+}
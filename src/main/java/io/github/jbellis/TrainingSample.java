@@ -0,0 +1,80 @@
+package io.github.jbellis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import io.github.jbellis.jvector.vector.VectorizationProvider;
+import io.github.jbellis.jvector.vector.types.VectorFloat;
+import io.github.jbellis.jvector.vector.types.VectorTypeSupport;
+
+import static io.github.jbellis.BuildIndex.log;
+
+/**
+ * Draws a uniform sample of embeddings for codebook training, spread evenly across every shard,
+ * so the codebooks are not biased towards whatever slice of Wikipedia happens to be in shard 0.
+ * Each shard contributes an equal quota, chosen by reservoir sampling, so only the sample itself
+ * is ever held in memory.
+ */
+class TrainingSample {
+    private static final VectorTypeSupport vts = VectorizationProvider.getInstance().getVectorTypeSupport();
+
+    /**
+     * @param config supplies the shard files and the number of threads to read them with
+     * @param nShards the number of shards to sample from
+     * @param size the total number of vectors to sample
+     * @param seed makes the sample reproducible
+     */
+    static List<VectorFloat<?>> sample(Config config, int nShards, int size, long seed) {
+        int quota = (size + nShards - 1) / nShards;
+        log("Sampling %,d vectors from each of %d shards", quota, nShards);
+
+        var executor = Executors.newFixedThreadPool(config.getIngestReaderThreads());
+        try {
+            var futures = new ArrayList<Future<List<float[]>>>(nShards);
+            for (int i = 0; i < nShards; i++) {
+                int shard = i;
+                futures.add(executor.submit(() -> sampleShard(config.filenameForShard(shard), quota, new Random(seed + shard))));
+            }
+
+            var sample = new ArrayList<VectorFloat<?>>(quota * nShards);
+            for (var future : futures) {
+                for (var embedding : future.get()) {
+                    sample.add(vts.createFloatVector(embedding));
+                }
+            }
+            log("Sampled %,d vectors", sample.size());
+            return sample;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static List<float[]> sampleShard(String filename, int quota, Random random) {
+        var reservoir = new ArrayList<float[]>(quota);
+        long[] seen = {0};
+        BuildIndex.forEachEmbedding(filename, embedding -> {
+            long n = seen[0]++;
+            if (n < quota) {
+                reservoir.add(embedding);
+            } else {
+                long j = random.nextLong(n + 1);
+                if (j < quota) {
+                    reservoir.set((int) j, embedding);
+                }
+            }
+        });
+        return reservoir;
+    }
+}
@@ -1,60 +1,221 @@
 package io.github.jbellis;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
-import io.github.jbellis.jvector.disk.SimpleReader;
-import io.github.jbellis.jvector.graph.GraphSearcher;
-import io.github.jbellis.jvector.graph.disk.OnDiskGraphIndex;
-import io.github.jbellis.jvector.graph.similarity.SearchScoreProvider;
-import io.github.jbellis.jvector.pq.PQVectors;
-import io.github.jbellis.jvector.util.Bits;
-import io.github.jbellis.jvector.vector.VectorSimilarityFunction;
+import io.github.jbellis.jvector.graph.SearchResult;
 import io.github.jbellis.jvector.vector.VectorizationProvider;
+import io.github.jbellis.jvector.vector.types.VectorFloat;
 import io.github.jbellis.jvector.vector.types.VectorTypeSupport;
-import net.openhft.chronicle.map.ChronicleMap;
-import net.openhft.chronicle.map.ChronicleMapBuilder;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyFactory;
+import spark.embeddedserver.jetty.JettyServerFactory;
 
+import static spark.Spark.awaitStop;
+import static spark.Spark.before;
 import static spark.Spark.get;
+import static spark.Spark.halt;
 import static spark.Spark.port;
 import static spark.Spark.post;
+import static spark.Spark.stop;
+import static spark.Spark.threadPool;
 
 public class WebSearch {
     private static final VectorTypeSupport vts = VectorizationProvider.getInstance().getVectorTypeSupport();
     private static final Config config = new Config();
 
-    private static OnDiskGraphIndex index;
-    private static ChronicleMap<Integer, RowData> contentMap;
-    private static PQVectors pqv;
-    private static GraphSearcher searcher;
+    // the generation being served; replaced when BuildIndex publishes a new one
+    private static final AtomicReference<IndexGeneration> current = new AtomicReference<>();
+    // instead of `current`, if the index is partitioned
+    private static PartitionedIndex partitioned;
     private static final int PORT = 4567; // Default port for Spark
+    private static final long GENERATION_CHECK_SECONDS = 10;
+    // the most virtual request threads Jetty will have at once
+    private static final int VIRTUAL_THREADS_MAX = 10_000;
+    // the fields RowData.toHtml renders; the others are not read from the content store
+    private static final Set<ColumnarContent.Column> RENDERED_COLUMNS =
+            EnumSet.of(ColumnarContent.Column.URL, ColumnarContent.Column.TITLE, ColumnarContent.Column.TEXT);
+    private static final Set<ColumnarContent.Column> URL_COLUMN = EnumSet.of(ColumnarContent.Column.URL);
+    private static final int TOP_K = 5;
+    // when collapsing by article, search this many times TOP_K passages to find TOP_K distinct articles
+    private static final int COLLAPSE_OVERFETCH = 4;
+    // null if disabled
+    private static final ResultCache resultCache = config.getResultCacheSize() > 0
+                                                   ? new ResultCache(config.getResultCacheSize(), config.getResultCacheTtlSeconds())
+                                                   : null;
 
-    static {
+    // per-request timings (the graph search and reranking are timed by IndexGeneration); also recorded by BatchSearch
+    static final String REQUESTS_HELP = "Search requests, counting a batch as one";
+    static final String REQUEST_TIME_HELP = "Total time per search request";
+    static final Metrics.Timer embedTime = Metrics.timer("coherepedia_search_embed_seconds", "Time to embed the query texts of a request");
+    static final Metrics.Timer contentTime = Metrics.timer("coherepedia_search_content_seconds", "Time to fetch the content of a query's results");
+    private static final Metrics.Timer renderTime = Metrics.timer("coherepedia_search_render_seconds", "Time to render the results of an HTML request");
+    private static final Metrics.Counter searchRequests = Metrics.counter("coherepedia_search_requests_total", REQUESTS_HELP, "endpoint", "html");
+    private static final Metrics.Timer requestTime = Metrics.timer("coherepedia_search_request_seconds", REQUEST_TIME_HELP, "endpoint", "html");
+
+    // runs the graph searches of every request (including those of batches and of in-process partitions),
+    // and the lexical legs of hybrid searches, so that request threads only wait
+    private static final SearchPool searchPool = new SearchPool(config.getSearchThreads());
+    private static final HybridSearch hybridSearch = new HybridSearch(searchPool, searchPool, config.getLexicalBudgetMillis());
+
+    // set once the index is loaded and warmed up; until then, searches are refused and /ready says so
+    private static volatile boolean ready;
+
+    private static void initializeResources() throws IOException {
+        if (config.getPartitions() > 0) {
+            // partitions are rebuilt rather than appended to, so there are no new generations to watch for
+            partitioned = PartitionedIndex.open(config, config.getServerThreads(), searchPool);
+            registerMetrics();
+            return;
+        }
+        int published = config.currentGeneration();
+        System.out.printf("Loading index from %s%n", config.annPath(published));
+        var generation = IndexGeneration.open(config, published, config.getServerThreads());
+        if (config.getWarmupQueries() > 0) {
+            generation.warmUp(config.getWarmupQueries());
+        }
+        current.set(generation);
+        registerMetrics();
+
+        var watcher = Executors.newSingleThreadScheduledExecutor(r -> {
+            var t = new Thread(r, "generation-watcher");
+            t.setDaemon(true);
+            return t;
+        });
+        watcher.scheduleWithFixedDelay(WebSearch::maybeSwitchGeneration,
+                                       GENERATION_CHECK_SECONDS, GENERATION_CHECK_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static void registerMetrics() {
+        Metrics.registerJvmMetrics();
+        if (partitioned == null) {
+            Metrics.gauge("coherepedia_index_generation", "The index generation being served", () -> current.get().generation);
+        }
+        if (Search.embeddingProvider() instanceof CachingEmbeddingProvider cache) {
+            Metrics.gauge("coherepedia_embedding_cache_size", "Query embeddings in the cache", cache::size);
+        }
+        if (resultCache != null && partitioned == null) {
+            Metrics.gauge("coherepedia_result_cache_size", "Searches in the result cache", resultCache::size);
+        }
+    }
+
+    /**
+     * Open the published generation if it is newer than the one being served, and switch to it.
+     * Requests already running against the old generation finish on it before it is closed.
+     */
+    private static void maybeSwitchGeneration() {
         try {
-            initializeResources();
-        } catch (IOException e) {
-            throw new ExceptionInInitializerError(e);
+            int published = config.currentGeneration();
+            if (published == current.get().generation) {
+                return;
+            }
+            System.out.format("Switching to index generation %d%n", published);
+            var next = IndexGeneration.open(config, published, config.getServerThreads());
+            if (config.getWarmupQueries() > 0) {
+                next.warmUp(config.getWarmupQueries());
+            }
+            var previous = current.getAndSet(next);
+            previous.close();
+            // the cached results can't be served from the new generation anyway, so free them
+            if (resultCache != null) {
+                resultCache.clear();
+            }
+        }
+        catch (Exception e) {
+            // keep serving the generation we have
+            System.out.format("Failed to switch index generations: %s%n", e);
         }
     }
 
-    @SuppressWarnings({"rawtypes", "unchecked"})
-    private static void initializeResources() throws IOException {
-        config.validateIndexExists();
-        config.validateCohereKey();
+    /**
+     * Serve requests on virtual threads: Jetty's pool still manages them, but creates a virtual
+     * thread wherever it would have started a platform one, so there is effectively no limit on
+     * requests waiting for their embeddings.  The CPU-bound work is bounded by searchPool instead.
+     */
+    private static void useVirtualThreads() {
+        var pool = new QueuedThreadPool(VIRTUAL_THREADS_MAX) {
+            @Override
+            protected Thread newThread(Runnable runnable) {
+                return Thread.ofVirtual().unstarted(runnable);
+            }
+        };
+        // virtual threads are always daemons, and refuse to be set otherwise
+        pool.setDaemon(true);
+        pool.setName("request");
+        EmbeddedServers.add(EmbeddedServers.Identifiers.JETTY, new EmbeddedJettyFactory(new JettyServerFactory() {
+            @Override
+            public Server create(int maxThreads, int minThreads, int threadTimeoutMillis) {
+                return new Server(pool);
+            }
+
+            @Override
+            public Server create(ThreadPool threadPool) {
+                return new Server(pool);
+            }
+        }));
+    }
+
+    private static VectorFloat<?> embed(String query) {
+        long start = System.nanoTime();
+        var q = Search.getVectorEmbedding(query);
+        embedTime.recordSince(start);
+        return q;
+    }
 
-        System.out.printf("Loading index from %s%n", config.annPath());
-        index = OnDiskGraphIndex.load(new Search.SimpleReaderSupplier());
-        try (var pqvReader = new SimpleReader(config.pqVectorsPath())) {
-            pqv = PQVectors.load(pqvReader);
+    private static IndexGeneration acquireGeneration() {
+        while (true) {
+            var generation = current.get();
+            if (generation.tryAcquire()) {
+                return generation;
+            }
         }
-        contentMap = ChronicleMapBuilder.of((Class<Integer>) (Class) Integer.class, (Class<RowData>) (Class) RowData.class)
-                                        .createPersistedTo(config.mapPath().toFile());
-        searcher = new GraphSearcher(index);
     }
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
+        config.validateIndexExists();
+        config.validateCohereKey();
+
+        if (config.useVirtualThreads()) {
+            useVirtualThreads();
+        } else {
+            // one searcher per server thread, at most
+            threadPool(config.getServerThreads());
+        }
         port(PORT);
         System.out.format("Listening on port %s%n", PORT);
 
+        // the server starts with the first route, so these answer while the index loads below
+        get("/ready", (req, res) -> {
+            res.type("text/plain");
+            if (!ready) {
+                res.status(503);
+                return "loading\n";
+            }
+            return "ready\n";
+        });
+        before("/search", (req, res) -> {
+            if (!ready) {
+                throw halt(503, "The index is still loading");
+            }
+        });
+        before("/search.json", (req, res) -> {
+            if (!ready) {
+                throw halt(503, "The index is still loading");
+            }
+        });
+
         get("/", (req, res) -> {
             return "<!DOCTYPE html>" +
                    "<html lang='en'>" +
@@ -71,6 +232,22 @@ public class WebSearch {
                    "            <div class='form-group'>" +
                    "                <input type='text' class='form-control' name='query' placeholder='Enter your search query'>" +
                    "            </div>" +
+                   "            <div class='form-row'>" +
+                   "                <div class='form-group col'>" +
+                   "                    <input type='text' class='form-control' name='title_initial' placeholder='Title starts with (e.g. A,B,C)'>" +
+                   "                </div>" +
+                   "                <div class='form-group col'>" +
+                   "                    <input type='text' class='form-control' name='domain' placeholder='Domain (e.g. en.wikipedia.org)'>" +
+                   "                </div>" +
+                   "            </div>" +
+                   "            <div class='form-group form-check'>" +
+                   "                <input type='checkbox' class='form-check-input' name='hybrid' id='hybrid'>" +
+                   "                <label class='form-check-label' for='hybrid'>Also match keywords (hybrid search)</label>" +
+                   "            </div>" +
+                   "            <div class='form-group form-check'>" +
+                   "                <input type='checkbox' class='form-check-input' name='collapse' id='collapse'>" +
+                   "                <label class='form-check-label' for='collapse'>One passage per article</label>" +
+                   "            </div>" +
                    "            <button type='submit' class='btn btn-primary'>Search</button>" +
                    "        </form>" +
                    "    </div>" +
@@ -83,39 +260,168 @@ public class WebSearch {
                    "</html>";
         });
 
+        get("/stats", (req, res) -> {
+            res.type("text/plain");
+            var stats = new StringBuilder();
+            if (ready && partitioned == null) {
+                stats.append("index_generation ").append(current.get().generation).append('\n');
+            }
+            if (Search.embeddingProvider() instanceof CachingEmbeddingProvider cache) {
+                stats.append("embedding_cache_hits ").append(cache.hits()).append('\n');
+                stats.append("embedding_cache_misses ").append(cache.misses()).append('\n');
+                stats.append("embedding_cache_size ").append(cache.size()).append('\n');
+            }
+            if (resultCache != null && config.getPartitions() == 0) {
+                stats.append("result_cache_hits ").append(resultCache.hits()).append('\n');
+                stats.append("result_cache_misses ").append(resultCache.misses()).append('\n');
+                stats.append("result_cache_size ").append(resultCache.size()).append('\n');
+            }
+            return stats.toString();
+        });
+
+        get("/metrics", (req, res) -> {
+            res.type("text/plain; version=0.0.4");
+            return Metrics.prometheus();
+        });
+
+        if (config.getPartitions() == 0) {
+            var batchSearch = new BatchSearch(Search.embeddingProvider(), WebSearch::acquireGeneration, searchPool);
+            post("/search.json", batchSearch::handle);
+        }
+
         post("/search", (req, res) -> {
-            // ask Cohere to turn the search string into a vector embedding
+            long start = System.nanoTime();
+            searchRequests.increment();
             String query = req.queryParams("query");
-            var q = Search.getVectorEmbedding(query);
+            var filter = FilterIndex.parse(req::queryParams);
+            boolean hybrid = req.queryParams("hybrid") != null;
+            boolean collapse = req.queryParams("collapse") != null;
+            if (partitioned != null) {
+                try {
+                    return searchPartitions(query, filter, hybrid, collapse);
+                }
+                finally {
+                    requestTime.recordSince(start);
+                }
+            }
 
-            // approximate score function for the first pass
-            var asf = pqv.scoreFunctionFor(q, VectorSimilarityFunction.COSINE);
-            // reranking function for the second pass
-            var rr = index.getView().rerankerFor(q, VectorSimilarityFunction.COSINE);
-            // bundle them together
-            var sf = new SearchScoreProvider(asf, rr);
+            var generation = acquireGeneration();
+            try {
+                // perform the search, unless it was done recently
+                ResultCache.Key key = resultCache == null ? null : ResultCache.key(generation.generation, query, filter, hybrid, collapse);
+                int[] ids = key == null ? null : resultCache.get(key);
+                if (ids == null) {
+                    try {
+                        ids = search(generation, query, filter, hybrid, collapse);
+                    }
+                    catch (IllegalStateException e) {
+                        throw halt(400, e.getMessage());
+                    }
+                    if (key != null) {
+                        resultCache.put(key, ids);
+                    }
+                }
 
-            // perform the search
-            var topK = 5;
-            long start = System.nanoTime();
-            var results = searcher.search(sf, // score function
-                                          topK, // this many final results
-                                          Search.rerankK(topK), // out of this many approximate results
-                                          0.0f, // minimum similarity threshold, out of scope for this example
-                                          0.0f, // rerankFloor, out of scope for this example
-                                          Bits.ALL); // IDs to allow in the results
-            System.out.format("Search took %,d ms%n", (System.nanoTime() - start) / 1_000_000L);
-
-            // render the results
-            StringBuilder resultsHtml = new StringBuilder("<!DOCTYPE html><html lang='en'><head><meta charset='UTF-8'><meta name='viewport' content='width=device-width, initial-scale=1.0'><title>Search Results</title><link href='https://maxcdn.bootstrapcdn.com/bootstrap/4.0.0/css/bootstrap.min.css' rel='stylesheet'></head><body><div class='container'><h1 class='mt-5'>Search Results for \"").append(query).append("\"</h1>");
-            resultsHtml.append("<ul class='list-group mt-3'>");
-            for (var ns : results.getNodes()) {
-                var row = contentMap.get(ns.node);
-                resultsHtml.append("<li class='list-group-item'>").append(row.toHtml()).append("</li>");
-            }
-            resultsHtml.append("</ul></div></body></html>");
-
-            return resultsHtml.toString();
+                // fetch the content of the results
+                long step = System.nanoTime();
+                var rows = new ArrayList<RowData>();
+                for (int id : ids) {
+                    rows.add(generation.content.get(id, RENDERED_COLUMNS));
+                }
+                step = contentTime.recordSince(step);
+
+                // render the results
+                var html = render(query, rows);
+                renderTime.recordSince(step);
+
+                return html;
+            }
+            finally {
+                generation.release();
+                requestTime.recordSince(start);
+            }
         });
+
+        try {
+            initializeResources();
+        }
+        catch (Throwable t) {
+            // Jetty's threads would keep the process up, answering 503 forever; die so that the
+            // failure is seen (and the instance restarted) instead
+            System.out.format("Failed to load the index: %s%n", t);
+            t.printStackTrace();
+            stop();
+            awaitStop();
+            System.exit(1);
+        }
+        ready = true;
+        System.out.println("Ready");
+    }
+
+    /**
+     * Search the generation, embedding the query with Cohere first (or alongside the lexical search, if hybrid)
+     *
+     * @param collapse keep only the best passage of each article, by URL
+     * @return the ids of the top results, best first
+     */
+    private static int[] search(IndexGeneration generation, String query, Map<FilterIndex.Attribute, Set<String>> filter,
+                                boolean hybrid, boolean collapse)
+    {
+        int searchK = collapse ? TOP_K * COLLAPSE_OVERFETCH : TOP_K;
+        SearchResult.NodeScore[] results;
+        if (hybrid) {
+            results = hybridSearch.search(generation, query, () -> embed(query), searchK, filter)
+                                  .toArray(SearchResult.NodeScore[]::new);
+        } else {
+            var q = embed(query);
+            results = searchPool.call(() -> generation.search(q, searchK, filter).getNodes());
+        }
+        if (!collapse) {
+            return Arrays.stream(results).mapToInt(ns -> ns.node).toArray();
+        }
+
+        long start = System.nanoTime();
+        var urls = new HashSet<String>();
+        var ids = new ArrayList<Integer>(TOP_K);
+        for (var ns : results) {
+            if (urls.add(generation.content.get(ns.node, URL_COLUMN).url())) {
+                ids.add(ns.node);
+                if (ids.size() == TOP_K) {
+                    break;
+                }
+            }
+        }
+        contentTime.recordSince(start);
+        return ids.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Search a partitioned index; the partitions fetch the content of their own results
+     */
+    private static String searchPartitions(String query, Map<FilterIndex.Attribute, Set<String>> filter, boolean hybrid, boolean collapse) {
+        if (hybrid || !filter.isEmpty()) {
+            throw halt(400, "Filters and hybrid search are not supported on a partitioned index");
+        }
+        var hits = partitioned.search(embed(query), collapse ? TOP_K * COLLAPSE_OVERFETCH : TOP_K, RENDERED_COLUMNS);
+        var urls = new HashSet<String>();
+        var rows = hits.stream()
+                       .map(PartitionedIndex.Hit::row)
+                       .filter(row -> !collapse || urls.add(row.url()))
+                       .limit(TOP_K)
+                       .toList();
+        long start = System.nanoTime();
+        var html = render(query, rows);
+        renderTime.recordSince(start);
+        return html;
+    }
+
+    private static String render(String query, List<RowData> rows) {
+        StringBuilder resultsHtml = new StringBuilder("<!DOCTYPE html><html lang='en'><head><meta charset='UTF-8'><meta name='viewport' content='width=device-width, initial-scale=1.0'><title>Search Results</title><link href='https://maxcdn.bootstrapcdn.com/bootstrap/4.0.0/css/bootstrap.min.css' rel='stylesheet'></head><body><div class='container'><h1 class='mt-5'>Search Results for \"").append(query).append("\"</h1>");
+        resultsHtml.append("<ul class='list-group mt-3'>");
+        for (var row : rows) {
+            resultsHtml.append("<li class='list-group-item'>").append(row.toHtml()).append("</li>");
+        }
+        resultsHtml.append("</ul></div></body></html>");
+        return resultsHtml.toString();
     }
 }